@@ -0,0 +1,110 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+// Big-endian writer over a single reusable byte[]. Without a channel the
+// buffer grows to hold the whole image; with one it is drained whenever it
+// fills, so memory stays at the initial capacity.
+class BinaryEmitter {
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private byte[] buf;
+    private int pos;
+    private long flushed;
+    private WritableByteChannel channel;
+
+    BinaryEmitter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    BinaryEmitter(int capacity) {
+        buf = new byte[Math.max(capacity, 16)];
+    }
+
+    void setChannel(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    void reset() {
+        pos = 0;
+        flushed = 0;
+    }
+
+    long position() {
+        return flushed + pos;
+    }
+
+    void u8(int v) {
+        ensure(1);
+        buf[pos++] = (byte) v;
+    }
+
+    void u32(int v) {
+        ensure(4);
+        buf[pos] = (byte) (v >>> 24);
+        buf[pos + 1] = (byte) (v >>> 16);
+        buf[pos + 2] = (byte) (v >>> 8);
+        buf[pos + 3] = (byte) v;
+        pos += 4;
+    }
+
+    void u64(long v) {
+        ensure(8);
+        buf[pos] = (byte) (v >>> 56);
+        buf[pos + 1] = (byte) (v >>> 48);
+        buf[pos + 2] = (byte) (v >>> 40);
+        buf[pos + 3] = (byte) (v >>> 32);
+        buf[pos + 4] = (byte) (v >>> 24);
+        buf[pos + 5] = (byte) (v >>> 16);
+        buf[pos + 6] = (byte) (v >>> 8);
+        buf[pos + 7] = (byte) v;
+        pos += 8;
+    }
+
+    void f64(double v) {
+        u64(Double.doubleToRawLongBits(v));
+    }
+
+    // Low byte of every char, matching how string globals were always written.
+    void latin1(String s) {
+        int n = s.length();
+        int i = 0;
+        while (i < n) {
+            ensure(1);
+            int end = Math.min(n, i + buf.length - pos);
+            while (i < end)
+                buf[pos++] = (byte) s.charAt(i++);
+        }
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, pos);
+    }
+
+    void drain() throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, pos);
+        while (bb.hasRemaining())
+            channel.write(bb);
+        flushed += pos;
+        pos = 0;
+    }
+
+    private void ensure(int n) {
+        if (pos + n <= buf.length)
+            return;
+        if (channel != null) {
+            try {
+                drain();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (n <= buf.length)
+                return;
+        }
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+    }
+}
@@ -0,0 +1,185 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiled function bodies kept from one build to the next, keyed by the
+// declaration's text: name, parameters, return type and body. An entry is
+// reused when every global and function it depends on (see Relocations)
+// still has the same signature and is still declared before it. Its code is copied, already optimized, with global slots and
+// fids patched for the new build.
+//
+// Entries are not tied to a file, so identical functions in different
+// sources share one. The least recently used are dropped past maxEntries.
+// Builds may run concurrently.
+class BodyCache {
+    static final int DEFAULT_MAX_ENTRIES = 1 << 16;
+
+    private static final class Compiled {
+        final Instruction[] code;
+        final int locaSlots;
+        // relocation k patches code[sites[k]] from symbols[k]
+        final int[] sites;
+        final byte[] kinds;
+        final String[] symbols;
+        final String[] dependencies;
+        final String[] signatures;
+
+        Compiled(Instruction[] code, int locaSlots, int[] sites, byte[] kinds, String[] symbols,
+              String[] dependencies, String[] signatures) {
+            this.code = code;
+            this.locaSlots = locaSlots;
+            this.sites = sites;
+            this.kinds = kinds;
+            this.symbols = symbols;
+            this.dependencies = dependencies;
+            this.signatures = signatures;
+        }
+    }
+
+    private final Map<String, Compiled> entries;
+    private long reused;
+    private long compiled;
+
+    BodyCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    BodyCache(int maxEntries) {
+        entries = new LinkedHashMap<String, Compiled>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Compiled> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    // The declaration's source text, tokens [from, to). Keying on the text
+    // itself rather than a digest of it makes a false hit impossible; edits
+    // to spacing or comments inside it recompile it, line numbers elsewhere
+    // do not matter.
+    static String key(TokenBuffer tokens, int from, int to) {
+        return tokens.getSource().text(tokens.start(from), tokens.start(to - 1) + tokens.length(to - 1));
+    }
+
+    // Fills the empty `fn` from the entry for `key` if it still applies in
+    // `program`; false when `fn` has to be compiled. `globalLimit` is the
+    // body's Parser.Body.globalLimit.
+    boolean reuse(String key, Program program, Function fn, long globalLimit) {
+        Compiled entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null || !holds(entry, program, fn, globalLimit))
+            return false;
+
+        SymbolTable globals = program.getGlobals();
+        long[] operands = new long[entry.sites.length];
+        for (int k = 0; k < operands.length; k++) {
+            String symbol = entry.symbols[k];
+            switch (entry.kinds[k]) {
+                case Relocations.GLOBAL:
+                    operands[k] = globals.getVar(symbol).getAddr();
+                    break;
+                case Relocations.STRING:
+                    Variable string = globals.findString(symbol);
+                    if (string == null)
+                        return false;
+                    operands[k] = string.getAddr();
+                    break;
+                default:
+                    operands[k] = callee(program, fn, symbol).getFid();
+            }
+        }
+
+        List<Instruction> code = fn.getInstructionList();
+        int base = code.size();
+        for (Instruction ins : entry.code)
+            code.add(copy(ins));
+        for (int k = 0; k < operands.length; k++)
+            code.get(base + entry.sites[k]).i64 = operands[k];
+        fn.setLocaSlots(entry.locaSlots);
+        synchronized (this) {
+            reused++;
+        }
+        return true;
+    }
+
+    // Keeps `fn`, compiled and optimized in this build, under `key`.
+    void put(String key, Function fn, Relocations relocations) {
+        List<Instruction> code = fn.getInstructionList();
+        Instruction[] copy = new Instruction[code.size()];
+        for (int i = 0; i < copy.length; i++)
+            copy[i] = copy(code.get(i));
+
+        // sites the optimizer deleted are dropped
+        int[] at = relocations.sitesIn(code);
+        int[] sites = new int[at.length];
+        byte[] kinds = new byte[at.length];
+        String[] symbols = new String[at.length];
+        int kept = 0;
+        for (int k = 0; k < at.length; k++) {
+            if (at[k] < 0)
+                continue;
+            sites[kept] = at[k];
+            kinds[kept] = relocations.kind(k);
+            symbols[kept] = relocations.symbols.get(k);
+            kept++;
+        }
+
+        String[] dependencies = relocations.dependencies.keySet().toArray(new String[0]);
+        String[] signatures = relocations.dependencies.values().toArray(new String[0]);
+        Compiled entry = new Compiled(copy, fn.getLocaSlots(), Arrays.copyOf(sites, kept),
+                Arrays.copyOf(kinds, kept), Arrays.copyOf(symbols, kept), dependencies, signatures);
+        synchronized (this) {
+            entries.put(key, entry);
+            compiled++;
+        }
+    }
+
+    synchronized long getReused() {
+        return reused;
+    }
+
+    synchronized long getCompiled() {
+        return compiled;
+    }
+
+    private static boolean holds(Compiled entry, Program program, Function fn, long globalLimit) {
+        for (int k = 0; k < entry.dependencies.length; k++) {
+            String dependency = entry.dependencies[k];
+            String name = dependency.substring(2);
+            String signature = null;
+            if (dependency.charAt(0) == 'g') {
+                Variable var = program.getGlobals().getVar(name);
+                if (var != null && var.getAddr() < globalLimit)
+                    signature = Relocations.signature(var);
+            } else {
+                Function callee = callee(program, fn, name);
+                if (callee != null)
+                    signature = Relocations.signature(callee);
+            }
+            if (!entry.signatures[k].equals(signature))
+                return false;
+        }
+        return true;
+    }
+
+    // What a call to `name` inside `fn` resolves to, with the parser's rule
+    // that only functions declared earlier are visible; null if nothing.
+    private static Function callee(Program program, Function fn, String name) {
+        if (name.equals(fn.getName()))
+            return fn;
+        Function callee = program.getFunction(name);
+        return callee != null && callee.getFid() < fn.getFid() ? callee : null;
+    }
+
+    private static Instruction copy(Instruction ins) {
+        Instruction copy = new Instruction(ins.getType());
+        copy.i64 = ins.i64;
+        copy.f64 = ins.f64;
+        return copy;
+    }
+}
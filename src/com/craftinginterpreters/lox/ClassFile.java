@@ -0,0 +1,228 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Just enough of the JVM class file format to hold a class of public static
+// methods. It targets version 49, the last one verified by type inference,
+// so no StackMapTable has to be computed for the generated code.
+class ClassFile {
+    private static final int VERSION = 49;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private final Bytes pool = new Bytes();
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int poolCount = 1;
+    private final Bytes methods = new Bytes();
+    private int methodCount;
+    private final int thisClass;
+    private final int superClass;
+
+    ClassFile(String name) {
+        thisClass = classRef(name);
+        superClass = classRef("java/lang/Object");
+    }
+
+    int getPoolCount() {
+        return poolCount;
+    }
+
+    int utf8(String s) {
+        Integer index = constants.get("U" + s);
+        if (index != null)
+            return index;
+        pool.u1(1);
+        byte[] bytes = modifiedUtf8(s);
+        pool.u2(bytes.length);
+        pool.bytes(bytes, bytes.length);
+        return add("U" + s, 1);
+    }
+
+    int classRef(String internalName) {
+        Integer index = constants.get("C" + internalName);
+        if (index != null)
+            return index;
+        int name = utf8(internalName);
+        pool.u1(7);
+        pool.u2(name);
+        return add("C" + internalName, 1);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        String key = "M" + owner + '.' + name + descriptor;
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        int cls = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        pool.u1(10);
+        pool.u2(cls);
+        pool.u2(nameAndType);
+        return add(key, 1);
+    }
+
+    int intConstant(int v) {
+        Integer index = constants.get("I" + v);
+        if (index != null)
+            return index;
+        pool.u1(3);
+        pool.u4(v);
+        return add("I" + v, 1);
+    }
+
+    // Takes two pool slots.
+    int longConstant(long v) {
+        Integer index = constants.get("J" + v);
+        if (index != null)
+            return index;
+        pool.u1(5);
+        pool.u4((int) (v >>> 32));
+        pool.u4((int) v);
+        return add("J" + v, 2);
+    }
+
+    void addMethod(String name, String descriptor, Code code) {
+        methods.u2(ACC_PUBLIC | ACC_STATIC);
+        methods.u2(utf8(name));
+        methods.u2(utf8(descriptor));
+        methods.u2(1);
+
+        int lines = code.lineCount;
+        int lineTableLength = 2 + 4 * lines;
+        methods.u2(utf8("Code"));
+        methods.u4(8 + code.length + 4 + 6 + lineTableLength);
+        methods.u2(code.maxStack);
+        methods.u2(code.maxLocals);
+        methods.u4(code.length);
+        methods.bytes(code.buf, code.length);
+        methods.u2(0); // exception table
+        methods.u2(1);
+        methods.u2(utf8("LineNumberTable"));
+        methods.u4(lineTableLength);
+        methods.u2(lines);
+        for (int i = 0; i < lines; i++) {
+            methods.u2(code.lines[i * 2]);
+            methods.u2(code.lines[i * 2 + 1]);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray() {
+        Bytes out = new Bytes();
+        out.u4(0xcafebabe);
+        out.u2(0);
+        out.u2(VERSION);
+        out.u2(poolCount);
+        out.bytes(pool.buf, pool.length);
+        out.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(0); // interfaces
+        out.u2(0); // fields
+        out.u2(methodCount);
+        out.bytes(methods.buf, methods.length);
+        out.u2(0); // attributes
+        return Arrays.copyOf(out.buf, out.length);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + descriptor;
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        int n = utf8(name);
+        int d = utf8(descriptor);
+        pool.u1(12);
+        pool.u2(n);
+        pool.u2(d);
+        return add(key, 1);
+    }
+
+    private int add(String key, int slots) {
+        int index = poolCount;
+        poolCount += slots;
+        if (poolCount > 0xffff)
+            throw new IllegalStateException("constant pool overflow");
+        constants.put(key, index);
+        return index;
+    }
+
+    private static byte[] modifiedUtf8(String s) {
+        Bytes out = new Bytes();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 1 && c < 0x80) {
+                out.u1(c);
+            } else if (c < 0x800) {
+                out.u1(0xc0 | c >> 6);
+                out.u1(0x80 | c & 0x3f);
+            } else {
+                out.u1(0xe0 | c >> 12);
+                out.u1(0x80 | c >> 6 & 0x3f);
+                out.u1(0x80 | c & 0x3f);
+            }
+        }
+        return Arrays.copyOf(out.buf, out.length);
+    }
+
+    // Growable big-endian buffer.
+    static class Bytes {
+        byte[] buf = new byte[256];
+        int length;
+
+        void u1(int v) {
+            ensure(1);
+            buf[length++] = (byte) v;
+        }
+
+        void u2(int v) {
+            ensure(2);
+            buf[length++] = (byte) (v >>> 8);
+            buf[length++] = (byte) v;
+        }
+
+        void u4(int v) {
+            ensure(4);
+            buf[length++] = (byte) (v >>> 24);
+            buf[length++] = (byte) (v >>> 16);
+            buf[length++] = (byte) (v >>> 8);
+            buf[length++] = (byte) v;
+        }
+
+        void bytes(byte[] b, int n) {
+            ensure(n);
+            System.arraycopy(b, 0, buf, length, n);
+            length += n;
+        }
+
+        void patch2(int at, int v) {
+            buf[at] = (byte) (v >>> 8);
+            buf[at + 1] = (byte) v;
+        }
+
+        private void ensure(int n) {
+            if (length + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + n));
+        }
+    }
+
+    // One method body: the bytecode, its limits and a line number table.
+    static class Code extends Bytes {
+        int maxStack;
+        int maxLocals;
+        private int[] lines = new int[16];
+        private int lineCount;
+
+        void line(int number) {
+            if (lineCount * 2 == lines.length)
+                lines = Arrays.copyOf(lines, lines.length * 2);
+            lines[lineCount * 2] = length;
+            lines[lineCount * 2 + 1] = number;
+            lineCount++;
+        }
+    }
+}
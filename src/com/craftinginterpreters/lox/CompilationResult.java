@@ -0,0 +1,41 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Collections;
+import java.util.List;
+
+// Outcome of LoxCompiler.compile. Status codes match the command line's exit
+// codes, so a failed compilation means the same thing either way.
+public final class CompilationResult {
+    public static final int OK = 0;
+    public static final int PARSE_ERROR = 1;
+    public static final int DUPLICATE_FUNCTION = 22;
+    public static final int REDECLARED = 64;
+    public static final int SCAN_ERROR = 65;
+
+    private final int status;
+    private final byte[] image;
+    private final List<Diagnostic> diagnostics;
+
+    CompilationResult(int status, byte[] image, List<Diagnostic> diagnostics) {
+        this.status = status;
+        this.image = image;
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return status == OK;
+    }
+
+    // The o0 image; null unless the compilation succeeded.
+    public byte[] getImage() {
+        return image;
+    }
+
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+}
@@ -0,0 +1,183 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Content-addressed store of finished o0 images, shared by any number of
+// processes. An entry is <sha-256>.o0, where the hash covers the source
+// bytes, LoxCompiler.CODEGEN_REVISION, the charset the source is decoded
+// with and every option that changes the output.
+//
+// Entries appear by an atomic rename of a finished temp file, so a reader
+// sees a whole image or none. A hit touches the entry's mtime and eviction
+// drops the least recently touched entries once the directory passes
+// maxBytes. Eviction and the hit/miss counters in the `stats` file are
+// serialized across processes by a lock on that file.
+class CompileCache {
+    static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+    private static final String SUFFIX = ".o0";
+    private static final String PARTIAL = ".part";
+    // Temp files this old were left behind by a process that died mid-store.
+    private static final long STALE_MILLIS = 60L * 60 * 1000;
+
+    private final Path dir;
+    private final long maxBytes;
+
+    CompileCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+    }
+
+    String key(ByteBuffer source, Options options) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String header = LoxCompiler.CODEGEN_REVISION + "\0" + Charset.defaultCharset().name()
+                + "\0" + options.outputKey() + "\0" + options.imageFlags() + "\0";
+        sha.update(header.getBytes(StandardCharsets.UTF_8));
+        sha.update(source.duplicate());
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : sha.digest())
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+
+    // Copies the entry for `key` to `dest`; false on a miss.
+    boolean fetch(String key, Path dest) throws IOException {
+        Path entry = dir.resolve(key + SUFFIX);
+        boolean hit;
+        try {
+            Files.copy(entry, dest, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            hit = true;
+        } catch (NoSuchFileException e) {
+            // absent, or evicted by another process while we copied
+            hit = false;
+        }
+        count(hit ? 1 : 0, hit ? 0 : 1);
+        return hit;
+    }
+
+    // Adds `image` as the entry for `key`, then evicts down to maxBytes.
+    void store(String key, Path image) throws IOException {
+        Path temp = Files.createTempFile(dir, key, PARTIAL);
+        try {
+            Files.copy(image, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, dir.resolve(key + SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        evict();
+    }
+
+    // hits, misses, entries, bytes
+    long[] stats() throws IOException {
+        long[] counts;
+        try (FileChannel stats = openStats(); FileLock lock = stats.lock()) {
+            counts = readCounts(stats);
+        }
+        long entries = 0;
+        long bytes = 0;
+        for (Entry e : list()) {
+            entries++;
+            bytes += e.size;
+        }
+        return new long[] { counts[0], counts[1], entries, bytes };
+    }
+
+    private void count(long hits, long misses) throws IOException {
+        try (FileChannel stats = openStats(); FileLock lock = stats.lock()) {
+            long[] counts = readCounts(stats);
+            ByteBuffer out = ByteBuffer.allocate(16);
+            out.putLong(counts[0] + hits).putLong(counts[1] + misses).flip();
+            stats.write(out, 0);
+        }
+    }
+
+    private void evict() throws IOException {
+        try (FileChannel stats = openStats(); FileLock lock = stats.lock()) {
+            List<Entry> entries = list();
+            long total = 0;
+            for (Entry e : entries)
+                total += e.size;
+            if (total <= maxBytes)
+                return;
+            entries.sort((a, b) -> Long.compare(a.touched, b.touched));
+            for (Entry e : entries) {
+                if (total <= maxBytes)
+                    break;
+                Files.deleteIfExists(e.path);
+                total -= e.size;
+            }
+        }
+    }
+
+    private List<Entry> list() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (name.endsWith(SUFFIX))
+                    entries.add(new Entry(file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                else if (name.endsWith(PARTIAL) && now - attrs.lastModifiedTime().toMillis() > STALE_MILLIS)
+                    Files.deleteIfExists(file);
+            }
+        }
+        return entries;
+    }
+
+    private FileChannel openStats() throws IOException {
+        return FileChannel.open(dir.resolve("stats"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static long[] readCounts(FileChannel stats) throws IOException {
+        if (stats.size() < 16)
+            return new long[2];
+        ByteBuffer in = ByteBuffer.allocate(16);
+        while (in.hasRemaining())
+            stats.read(in, in.position());
+        in.flip();
+        return new long[] { in.getLong(), in.getLong() };
+    }
+
+    private static final class Entry {
+        final Path path;
+        final long size;
+        final long touched;
+
+        Entry(Path path, long size, long touched) {
+            this.path = path;
+            this.size = size;
+            this.touched = touched;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// Thin front end for a running CompileServer:
+//
+//   CompileClient [--port=N] in.c0 out.o0 [in2.c0 out2.o0 ...]
+//
+// All pairs go over one connection. Diagnostics go to stderr in the usual
+// format and the exit code is the first failing status, as with Lox. With no
+// server on the port the files are compiled in-process instead.
+public class CompileClient {
+    public static void main(String[] args) throws IOException {
+        int port = CompileServer.DEFAULT_PORT;
+        int first = 0;
+        if (args.length > 0 && args[0].startsWith("--port=")) {
+            port = Integer.parseInt(args[0].substring("--port=".length()));
+            first = 1;
+        }
+        if ((args.length - first) == 0 || (args.length - first) % 2 != 0) {
+            System.err.println("usage: CompileClient [--port=N] in.c0 out.o0 [in.c0 out.o0 ...]");
+            System.exit(2);
+        }
+
+        int status;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            status = run(args, first, in, out);
+        } catch (ConnectException e) {
+            status = runLocally(args, first);
+        }
+        System.exit(status);
+    }
+
+    private static int run(String[] args, int first, DataInputStream in, DataOutputStream out) throws IOException {
+        int status = 0;
+        for (int i = first; i < args.length; i += 2) {
+            CompileProtocol.writeRequest(out, Files.readAllBytes(Paths.get(args[i])));
+            CompileProtocol.Response response = CompileProtocol.readResponse(in);
+            for (String diagnostic : response.diagnostics)
+                System.err.println(diagnostic);
+            if (response.image != null)
+                Files.write(Paths.get(args[i + 1]), response.image);
+            if (status == 0)
+                status = response.status;
+        }
+        return status;
+    }
+
+    // No server running: compile here, at full JVM start-up cost.
+    private static int runLocally(String[] args, int first) throws IOException {
+        LoxCompiler compiler = new LoxCompiler();
+        int status = 0;
+        for (int i = first; i < args.length; i += 2) {
+            byte[] source = Files.readAllBytes(Paths.get(args[i]));
+            CompilationResult result = compiler.compile(
+                    Source.of(ByteBuffer.wrap(source), Charset.defaultCharset()));
+            for (Diagnostic diagnostic : result.getDiagnostics())
+                System.err.println(diagnostic);
+            if (result.getImage() != null)
+                Files.write(Paths.get(args[i + 1]), result.getImage());
+            if (status == 0)
+                status = result.getStatus();
+        }
+        return status;
+    }
+}
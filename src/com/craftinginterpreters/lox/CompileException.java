@@ -0,0 +1,17 @@
+package com.craftinginterpreters.lox;
+
+// A compile error that ends the compilation with a specific status, the one
+// the command line exits with (64 for a redeclared name, 22 for a redefined
+// function).
+class CompileException extends RuntimeException {
+    private final int status;
+
+    CompileException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    int getStatus() {
+        return status;
+    }
+}
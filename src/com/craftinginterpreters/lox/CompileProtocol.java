@@ -0,0 +1,85 @@
+package com.craftinginterpreters.lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Framing between CompileServer and CompileClient, the same over a socket
+// and over stdin/stdout. Integers are big-endian.
+//
+//   request:  u32 length, source bytes (as they are on disk)
+//   response: u32 status, u32 image length or -1, image bytes,
+//             u32 diagnostic count, each as modified UTF-8 (writeUTF)
+//
+// A client ends the conversation by closing its side.
+class CompileProtocol {
+    static final int MAX_SOURCE = Integer.MAX_VALUE - 8;
+
+    // null at a clean end of stream.
+    static byte[] readRequest(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_SOURCE)
+            throw new IOException("bad request length " + length);
+        byte[] source = new byte[length];
+        in.readFully(source);
+        return source;
+    }
+
+    static void writeRequest(DataOutputStream out, byte[] source) throws IOException {
+        out.writeInt(source.length);
+        out.write(source);
+        out.flush();
+    }
+
+    static void writeResponse(DataOutputStream out, CompilationResult result) throws IOException {
+        out.writeInt(result.getStatus());
+        byte[] image = result.getImage();
+        if (image == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(image.length);
+            out.write(image);
+        }
+        List<Diagnostic> diagnostics = result.getDiagnostics();
+        out.writeInt(diagnostics.size());
+        for (Diagnostic diagnostic : diagnostics)
+            out.writeUTF(diagnostic.toString());
+        out.flush();
+    }
+
+    // The response as the client sees it; diagnostics are already rendered.
+    static final class Response {
+        final int status;
+        final byte[] image;
+        final List<String> diagnostics;
+
+        Response(int status, byte[] image, List<String> diagnostics) {
+            this.status = status;
+            this.image = image;
+            this.diagnostics = diagnostics;
+        }
+    }
+
+    static Response readResponse(DataInputStream in) throws IOException {
+        int status = in.readInt();
+        int length = in.readInt();
+        byte[] image = null;
+        if (length >= 0) {
+            image = new byte[length];
+            in.readFully(image);
+        }
+        int count = in.readInt();
+        List<String> diagnostics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            diagnostics.add(in.readUTF());
+        return new Response(status, image, diagnostics);
+    }
+}
@@ -0,0 +1,92 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Keeps one warm LoxCompiler resident and answers CompileProtocol requests,
+// either on stdin/stdout or on a loopback TCP port (Java 8 has no Unix-domain
+// sockets). Each connection gets its own thread; requests on a connection
+// are answered in order. Function bodies are shared between all requests
+// through one BodyCache, so recompiling an edited file only compiles the
+// functions whose code can have changed.
+class CompileServer {
+    static final int DEFAULT_PORT = 7373;
+
+    // Compiled a few hundred times at startup so the first real request does
+    // not run in the interpreter.
+    private static final String WARM_UP =
+            "let g: int = 1;\n"
+            + "fn f(n: int) -> int { if n <= 1 { return n; } return f(n - 1) + f(n - 2); }\n"
+            + "fn main() -> void { let i: int = 0; while i < 10 { putint(f(i) * g); i = i + 1; } putstr(\"x\"); }\n";
+    private static final int WARM_UP_ROUNDS = 300;
+
+    private final Options options;
+    private final BodyCache bodies = new BodyCache();
+    private final LoxCompiler compiler;
+
+    CompileServer(Options options) {
+        this.options = options;
+        this.compiler = new LoxCompiler(options, bodies);
+    }
+
+    void warmUp() {
+        for (int i = 0; i < WARM_UP_ROUNDS; i++)
+            compiler.compile(WARM_UP);
+    }
+
+    // Answers requests from `in` on `out` until `in` ends.
+    void serve(InputStream in, OutputStream out) throws IOException {
+        DataInputStream requests = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        DataOutputStream responses = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        byte[] source;
+        while ((source = CompileProtocol.readRequest(requests)) != null) {
+            long begin = System.nanoTime();
+            long reused = bodies.getReused();
+            long compiled = bodies.getCompiled();
+            CompilationResult result = compiler.compile(
+                    Source.of(ByteBuffer.wrap(source), Charset.defaultCharset()));
+            if (options.time) {
+                System.err.println("compiled " + source.length + " bytes in "
+                        + (System.nanoTime() - begin) / 1000000 + " ms, "
+                        + (bodies.getReused() - reused) + " bodies reused, "
+                        + (bodies.getCompiled() - compiled) + " compiled");
+            }
+            CompileProtocol.writeResponse(responses, result);
+        }
+    }
+
+    // Accepts connections on 127.0.0.1:`port` until the process is killed.
+    void listen(int port) throws IOException {
+        ExecutorService connections = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "compile-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (ServerSocket server = new ServerSocket(port, 64, InetAddress.getLoopbackAddress())) {
+            System.err.println("compile server listening on 127.0.0.1:" + server.getLocalPort());
+            while (true) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                connections.execute(() -> {
+                    try (Socket s = socket) {
+                        serve(s.getInputStream(), s.getOutputStream());
+                    } catch (IOException e) {
+                        System.err.println("compile server: " + e.getMessage());
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.InstructionType.*;
+
+// Basic blocks of one function with successor/predecessor edges, reverse
+// postorder, immediate dominators and natural loops. Everything is stored in
+// flat int arrays (edges in CSR form) and computed with explicit worklists,
+// so arbitrarily long functions cannot overflow the Java stack.
+//
+// Blocks are numbered in instruction order; block 0 is the entry. A block
+// whose control can run past the last instruction (by falling through or
+// branching to index n) has no edge for that and is flagged fallsOff().
+class ControlFlowGraph {
+    private final List<Instruction> code;
+    private final int n;
+
+    private int blockCount;
+    private int[] blockStart;
+    private int[] blockOf;
+    private boolean[] fallsOff;
+
+    private int[] succStart;
+    private int[] succ;
+    private int[] predStart;
+    private int[] pred;
+
+    private int[] rpo;
+    private int[] rpoIndex;
+    private int[] idom;
+    private int[] domPre;
+    private int[] domPost;
+
+    private boolean[] loopHeader;
+    private int[] loopDepth;
+    private int[] loopLast;
+    private int[] loopOf;
+    private int[] loopParent;
+
+    ControlFlowGraph(Function fn) {
+        this(fn.getInstructionList());
+    }
+
+    ControlFlowGraph(List<Instruction> code) {
+        this.code = code;
+        this.n = code.size();
+        findBlocks();
+        linkBlocks();
+        orderBlocks();
+        computeDominators();
+        findLoops();
+    }
+
+    // Absolute index a br* at `at` jumps to.
+    static int target(Instruction ins, int at) {
+        return at + 1 + (int) ins.i64;
+    }
+
+    int getBlockCount() {
+        return blockCount;
+    }
+
+    int getBlockStart(int block) {
+        return blockStart[block];
+    }
+
+    // One past the block's last instruction.
+    int getBlockEnd(int block) {
+        return blockStart[block + 1];
+    }
+
+    int getBlockOf(int instruction) {
+        return blockOf[instruction];
+    }
+
+    boolean isLeader(int instruction) {
+        return instruction == n || blockStart[blockOf[instruction]] == instruction;
+    }
+
+    boolean fallsOff(int block) {
+        return fallsOff[block];
+    }
+
+    int getSuccessorCount(int block) {
+        return succStart[block + 1] - succStart[block];
+    }
+
+    int getSuccessor(int block, int k) {
+        return succ[succStart[block] + k];
+    }
+
+    int getPredecessorCount(int block) {
+        return predStart[block + 1] - predStart[block];
+    }
+
+    int getPredecessor(int block, int k) {
+        return pred[predStart[block] + k];
+    }
+
+    boolean isReachable(int block) {
+        return rpoIndex[block] >= 0;
+    }
+
+    // Reachable blocks in reverse postorder.
+    int[] getReversePostorder() {
+        return rpo;
+    }
+
+    // -1 for the entry and for unreachable blocks.
+    int getIdom(int block) {
+        return block == 0 || !isReachable(block) ? -1 : idom[block];
+    }
+
+    boolean dominates(int a, int b) {
+        if (!isReachable(a) || !isReachable(b))
+            return false;
+        return domPre[a] <= domPre[b] && domPost[b] <= domPost[a];
+    }
+
+    boolean isLoopHeader(int block) {
+        return loopHeader[block];
+    }
+
+    // Number of natural loops containing the block.
+    int getLoopDepth(int block) {
+        return loopDepth[block];
+    }
+
+    // For a loop header, the highest-numbered block of its loop body.
+    int getLoopLast(int header) {
+        return loopLast[header];
+    }
+
+    // Header of the innermost loop containing the block, or -1.
+    int getLoopOf(int block) {
+        return loopOf[block];
+    }
+
+    // For a loop header, the header of the next loop out, or -1.
+    int getLoopParent(int header) {
+        return loopParent[header];
+    }
+
+    boolean inLoop(int block, int header) {
+        return block >= header && block <= loopLast[header];
+    }
+
+    private void findBlocks() {
+        boolean[] leader = new boolean[n + 1];
+        leader[0] = true;
+        for (int i = 0; i < n; i++) {
+            Instruction ins = code.get(i);
+            if (ins.isBr()) {
+                leader[i + 1] = true;
+                int t = target(ins, i);
+                if (t < 0 || t > n)
+                    throw new IllegalStateException("branch at " + i + " leaves the function");
+                leader[t] = true;
+            } else if (ins.getType() == ret) {
+                leader[i + 1] = true;
+            }
+        }
+        blockOf = new int[n];
+        int[] starts = new int[n + 2];
+        int b = -1;
+        for (int i = 0; i < n; i++) {
+            if (leader[i])
+                starts[++b] = i;
+            blockOf[i] = b;
+        }
+        blockCount = n == 0 ? 1 : b + 1;
+        starts[blockCount] = n;
+        blockStart = Arrays.copyOf(starts, blockCount + 1);
+    }
+
+    private void linkBlocks() {
+        fallsOff = new boolean[blockCount];
+        int[] out = new int[blockCount * 2];
+        int[] outCount = new int[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            int end = blockStart[b + 1];
+            if (end == blockStart[b]) {
+                fallsOff[b] = true;
+                continue;
+            }
+            Instruction last = code.get(end - 1);
+            InstructionType type = last.getType();
+            if (type == ret)
+                continue;
+            if (last.isBr())
+                addEdge(b, target(last, end - 1), out, outCount);
+            if (type != br)
+                addEdge(b, end, out, outCount);
+        }
+
+        succStart = new int[blockCount + 1];
+        for (int b = 0; b < blockCount; b++)
+            succStart[b + 1] = succStart[b] + outCount[b];
+        succ = new int[succStart[blockCount]];
+        int[] predCount = new int[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            for (int k = 0; k < outCount[b]; k++) {
+                succ[succStart[b] + k] = out[b * 2 + k];
+                predCount[out[b * 2 + k]]++;
+            }
+        }
+        predStart = new int[blockCount + 1];
+        for (int b = 0; b < blockCount; b++)
+            predStart[b + 1] = predStart[b] + predCount[b];
+        pred = new int[predStart[blockCount]];
+        int[] fill = Arrays.copyOf(predStart, blockCount);
+        for (int b = 0; b < blockCount; b++) {
+            for (int k = succStart[b]; k < succStart[b + 1]; k++)
+                pred[fill[succ[k]]++] = b;
+        }
+    }
+
+    private void addEdge(int from, int toInstruction, int[] out, int[] outCount) {
+        if (toInstruction == n) {
+            fallsOff[from] = true;
+            return;
+        }
+        int to = blockOf[toInstruction];
+        if (outCount[from] == 1 && out[from * 2] == to)
+            return;
+        out[from * 2 + outCount[from]++] = to;
+    }
+
+    private void orderBlocks() {
+        rpoIndex = new int[blockCount];
+        Arrays.fill(rpoIndex, -1);
+        int[] post = new int[blockCount];
+        int postCount = 0;
+        boolean[] seen = new boolean[blockCount];
+        int[] stack = new int[blockCount];
+        int[] edge = new int[blockCount];
+        int depth = 0;
+        stack[depth++] = 0;
+        seen[0] = true;
+        while (depth > 0) {
+            int b = stack[depth - 1];
+            if (edge[depth - 1] < getSuccessorCount(b)) {
+                int s = getSuccessor(b, edge[depth - 1]++);
+                if (!seen[s]) {
+                    seen[s] = true;
+                    stack[depth] = s;
+                    edge[depth] = 0;
+                    depth++;
+                }
+            } else {
+                post[postCount++] = b;
+                depth--;
+            }
+        }
+        rpo = new int[postCount];
+        for (int i = 0; i < postCount; i++) {
+            rpo[i] = post[postCount - 1 - i];
+            rpoIndex[rpo[i]] = i;
+        }
+    }
+
+    // Cooper, Harvey and Kennedy's iterative algorithm over reverse postorder.
+    private void computeDominators() {
+        idom = new int[blockCount];
+        Arrays.fill(idom, -1);
+        idom[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < rpo.length; i++) {
+                int b = rpo[i];
+                int newIdom = -1;
+                for (int k = predStart[b]; k < predStart[b + 1]; k++) {
+                    int p = pred[k];
+                    if (idom[p] < 0)
+                        continue;
+                    newIdom = newIdom < 0 ? p : intersect(p, newIdom);
+                }
+                if (idom[b] != newIdom) {
+                    idom[b] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+
+        // Pre/post numbers on the dominator tree make dominates() O(1).
+        int[] childStart = new int[blockCount + 1];
+        for (int b : rpo) {
+            if (b != 0)
+                childStart[idom[b] + 1]++;
+        }
+        for (int b = 0; b < blockCount; b++)
+            childStart[b + 1] += childStart[b];
+        int[] children = new int[Math.max(rpo.length - 1, 0)];
+        int[] fill = Arrays.copyOf(childStart, blockCount);
+        for (int b : rpo) {
+            if (b != 0)
+                children[fill[idom[b]]++] = b;
+        }
+        domPre = new int[blockCount];
+        domPost = new int[blockCount];
+        int[] stack = new int[blockCount];
+        int[] next = new int[blockCount];
+        int depth = 0;
+        int clock = 0;
+        stack[depth] = 0;
+        next[depth++] = childStart[0];
+        domPre[0] = clock++;
+        while (depth > 0) {
+            int b = stack[depth - 1];
+            if (next[depth - 1] < childStart[b + 1]) {
+                int c = children[next[depth - 1]++];
+                domPre[c] = clock++;
+                stack[depth] = c;
+                next[depth++] = childStart[c];
+            } else {
+                domPost[b] = clock++;
+                depth--;
+            }
+        }
+    }
+
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (rpoIndex[a] > rpoIndex[b])
+                a = idom[a];
+            while (rpoIndex[b] > rpoIndex[a])
+                b = idom[b];
+        }
+        return a;
+    }
+
+    // A back edge is one whose target dominates its source; the natural loop
+    // is everything that reaches the source without passing the header.
+    private void findLoops() {
+        loopHeader = new boolean[blockCount];
+        loopDepth = new int[blockCount];
+        loopLast = new int[blockCount];
+        int[] mark = new int[blockCount];
+        Arrays.fill(mark, -1);
+        int[] work = new int[blockCount];
+        int loops = 0;
+        for (int h : rpo) {
+            for (int k = predStart[h]; k < predStart[h + 1]; k++) {
+                int tail = pred[k];
+                if (!dominates(h, tail))
+                    continue;
+                if (!loopHeader[h]) {
+                    loopHeader[h] = true;
+                    loopLast[h] = h;
+                }
+                int id = loops++;
+                mark[h] = id;
+                int top = 0;
+                if (mark[tail] != id) {
+                    mark[tail] = id;
+                    work[top++] = tail;
+                }
+                while (top > 0) {
+                    int b = work[--top];
+                    loopLast[h] = Math.max(loopLast[h], b);
+                    for (int q = predStart[b]; q < predStart[b + 1]; q++) {
+                        int p = pred[q];
+                        if (mark[p] != id && isReachable(p)) {
+                            mark[p] = id;
+                            work[top++] = p;
+                        }
+                    }
+                }
+            }
+        }
+        computeLoopDepth();
+    }
+
+    private void computeLoopDepth() {
+        // Structured code keeps every loop body contiguous in block order,
+        // [header, loopLast], so one sweep with a stack of open loops finds
+        // the nesting.
+        loopOf = new int[blockCount];
+        loopParent = new int[blockCount];
+        Arrays.fill(loopParent, -1);
+        int[] open = new int[blockCount];
+        int depth = 0;
+        for (int b = 0; b < blockCount; b++) {
+            while (depth > 0 && loopLast[open[depth - 1]] < b)
+                depth--;
+            if (loopHeader[b]) {
+                loopParent[b] = depth > 0 ? open[depth - 1] : -1;
+                open[depth++] = b;
+            }
+            loopOf[b] = depth > 0 ? open[depth - 1] : -1;
+            loopDepth[b] = depth;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.craftinginterpreters.lox;
+
+// One compile error, positioned by source line.
+public final class Diagnostic {
+    private final int line;
+    private final String where;
+    private final String message;
+
+    Diagnostic(int line, String where, String message) {
+        this.line = line;
+        this.where = where;
+        this.message = message;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    // Same shape the command line prints: [line 3] Error at 'x': message
+    @Override
+    public String toString() {
+        return "[line " + line + "] Error" + where + ": " + message;
+    }
+}
@@ -0,0 +1,46 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Errors of one compilation. The threaded lexer reports from its own thread,
+// hence the locking. With an echo stream every error is also printed as it
+// is reported, which is what the command line wants.
+class Diagnostics {
+    private final List<Diagnostic> errors = new ArrayList<>();
+    private final PrintStream echo;
+
+    Diagnostics() {
+        this(null);
+    }
+
+    Diagnostics(PrintStream echo) {
+        this.echo = echo;
+    }
+
+    void error(int line, String message) {
+        report(new Diagnostic(line, "", message));
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF)
+            report(new Diagnostic(token.line, " at end", message));
+        else
+            report(new Diagnostic(token.line, " at '" + token.lexeme + "'", message));
+    }
+
+    synchronized boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    synchronized List<Diagnostic> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    private synchronized void report(Diagnostic diagnostic) {
+        errors.add(diagnostic);
+        if (echo != null)
+            echo.println(diagnostic);
+    }
+}
@@ -12,7 +12,7 @@ abstract class Expr {
     }
   }
   static class Binary extends Expr {
-    Binary(Expr left, Token operator, Expr right) {
+    Binary(Expr left, TokenType operator, Expr right) {
       this.left = left;
       this.operator = operator;
       this.right = right;
@@ -20,7 +20,7 @@ abstract class Expr {
     }
 
     final Expr left;
-    final Token operator;
+    final TokenType operator;
     final Expr right;
   }
   static class Call extends Expr {
@@ -38,32 +38,32 @@ abstract class Expr {
     final Expr expression;
   }
   static class Literal extends Expr {
-    Literal(Token token) {
-      this.val = token.literal;
-      if (token.type == UINT || token.type == CHAR)
+    Literal(TokenType type, Object literal) {
+      this.val = literal;
+      if (type == UINT || type == CHAR)
         this.valType = Type.INT;
-      else if (token.type == DOUBLE)
+      else if (type == DOUBLE)
         this.valType = Type.DOUBLE;
-      else if (token.type == STRING)
+      else if (type == STRING)
         this.valType = Type.STRING;
     }
   }
   static class Unary extends Expr {
-    Unary(Token operator, Expr right) {
+    Unary(TokenType operator, Expr right) {
       this.operator = operator;
       this.right = right;
       this.valType = right.valType;
     }
 
-    final Token operator;
+    final TokenType operator;
     final Expr right;
   }
   static class Variable extends Expr {
-    Variable(Token name, Type type) {
+    Variable(String name, Type type) {
       this.name = name;
       this.valType = type;
     }
 
-    final Token name;
+    final String name;
   }
 }
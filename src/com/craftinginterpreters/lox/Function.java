@@ -1,6 +1,7 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 class Function {
@@ -13,12 +14,38 @@ class Function {
     private String name;
     private Type returnType = Type.VOID;
     private List<Type> paramTypes = new ArrayList<>();
+    // Operands naming globals and functions, when something needs to move
+    // this code into another program; usually null.
+    private Relocations relocations;
 
     int addInstruction(Instruction instruction) {
         instructionList.add(instruction);
         return instructionList.size() - 1;
     }
 
+    // Adds a br/brTrue/brFalse to `target`; if the label is not bound yet the
+    // offset is filled in by bind().
+    int addJump(InstructionType type, Label target) {
+        int id = addInstruction(new Instruction(type, 0));
+        if (target.isBound())
+            instructionList.get(id).i64 = target.getPosition() - id - 1;
+        else
+            target.addFixup(id);
+        return id;
+    }
+
+    // Binds `label` to the next instruction added and patches the jumps
+    // waiting for it.
+    int bind(Label label) {
+        int at = instructionList.size();
+        int count = label.bind(at);
+        for (int k = 0; k < count; k++) {
+            int id = label.getFixup(k);
+            instructionList.get(id).i64 = at - id - 1;
+        }
+        return at;
+    }
+
     void addParamType(Type type) {
         paramTypes.add(type);
         paramSlots++;
@@ -28,6 +55,11 @@ class Function {
         return instructionList.get(id);
     }
 
+    // Drops every instruction from index `size` on.
+    void truncate(int size) {
+        instructionList.subList(size, instructionList.size()).clear();
+    }
+
     int nextLoca() {
         return locaSlots++;
     }
@@ -52,6 +84,24 @@ class Function {
         return instructionList;
     }
 
+    // Drops the instructions once they have been written out; the function
+    // keeps only what callers need.
+    void release() {
+        instructionList = Collections.emptyList();
+    }
+
+    List<Type> getParamTypes() {
+        return paramTypes;
+    }
+
+    Relocations getRelocations() {
+        return relocations;
+    }
+
+    void setRelocations(Relocations relocations) {
+        this.relocations = relocations;
+    }
+
     int getReturnSlots() {
         return returnSlots;
     }
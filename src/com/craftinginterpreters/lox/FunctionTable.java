@@ -1,14 +1,22 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 class FunctionTable {
     private int nextFid;
     private List<Function> functions;
+    private Map<String, Function> byName;
+    // Dense fid -> Function index; fid 0 is _start and never lives here.
+    private Function[] byFid;
 
     FunctionTable() {
         functions = new ArrayList<>();
+        byName = new HashMap<>();
+        byFid = new Function[16];
         nextFid = 1;
     }
 
@@ -21,24 +29,27 @@ class FunctionTable {
     }
 
     boolean isDeclared(String name) {
-        for (Function fn : functions) {
-            if (fn.getName().equals(name))
-                return true;
-        }
-        return false;
+        return byName.containsKey(name);
     }
 
     void addFunction(Function fn) {
         if (isDeclared(fn.getName()))
-            System.exit(22);
+            throw new CompileException(CompilationResult.DUPLICATE_FUNCTION, "function '" + fn.getName() + "' is already defined");
         functions.add(fn);
+        byName.put(fn.getName(), fn);
+        int fid = fn.getFid();
+        if (fid >= byFid.length)
+            byFid = Arrays.copyOf(byFid, Math.max(byFid.length * 2, fid + 1));
+        byFid[fid] = fn;
     }
 
     Function getFunction(String name) {
-        for (Function fn : functions) {
-            if (fn.getName().equals(name))
-                return fn;
-        }
-        return null;
+        return byName.get(name);
+    }
+
+    Function getFunction(int fid) {
+        if (fid < 0 || fid >= byFid.length)
+            return null;
+        return byFid[fid];
     }
 }
@@ -0,0 +1,111 @@
+package com.craftinginterpreters.lox;
+
+// An o0 image decoded for execution. Every global is one slot; every function
+// keeps its opcodes and operands in parallel arrays, with br* operands already
+// turned into absolute instruction indices. Bodies end in one extra ret.
+class Image {
+    static final class Code {
+        final int fid;
+        final int returnSlots;
+        final int paramSlots;
+        final int locaSlots;
+        // Program.FLAG_MAX_STACK; -1 when the image does not record it.
+        final int maxStack;
+        // Slots from the linkage up that the frame can ever use, so entering
+        // it needs one bounds check; 0 when maxStack is unknown.
+        final int frameSlots;
+        final byte[] ops;
+        final long[] args;
+
+        Code(int fid, int returnSlots, int paramSlots, int locaSlots, int maxStack, byte[] ops, long[] args) {
+            this.fid = fid;
+            this.returnSlots = returnSlots;
+            this.paramSlots = paramSlots;
+            this.locaSlots = locaSlots;
+            this.maxStack = maxStack;
+            this.frameSlots = maxStack < 0 ? 0 : 3 + locaSlots + maxStack;
+            this.ops = ops;
+            this.args = args;
+        }
+    }
+
+    // Decodes function `fid` from wherever the image keeps it; null if there
+    // is no such function.
+    interface Decoder {
+        Code decode(int fid);
+    }
+
+    private final int version;
+    private final byte[][] globals;
+    private final Code[] functions;
+    private final int entry;
+    // Fills `functions` on demand; null when all are decoded up front.
+    private final Decoder decoder;
+    private int decoded;
+
+    Image(int version, byte[][] globals, Code[] functions, int entry) {
+        this(version, globals, functions, entry, null);
+        for (Code code : functions) {
+            if (code != null)
+                decoded++;
+        }
+    }
+
+    Image(int version, byte[][] globals, Code[] functions, int entry, Decoder decoder) {
+        this.version = version;
+        this.globals = globals;
+        this.functions = functions;
+        this.entry = entry;
+        this.decoder = decoder;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    int getGlobalCount() {
+        return globals.length;
+    }
+
+    byte[] getGlobal(int index) {
+        return globals[index];
+    }
+
+    // One past the highest fid.
+    int getFunctionLimit() {
+        return functions.length;
+    }
+
+    // null if no function has this fid.
+    Code getFunction(int fid) {
+        Code code = getDecoded(fid);
+        return code != null || decoder == null || fid < 0 || fid >= functions.length ? code : decode(fid);
+    }
+
+    // The function if it has been decoded already, else null. For the
+    // interpreter's call and ret, where even a never-taken call to the
+    // decoder measurably slows the dispatch loop.
+    Code getDecoded(int fid) {
+        if (fid < 0 || fid >= functions.length)
+            return null;
+        return functions[fid];
+    }
+
+    private Code decode(int fid) {
+        Code code = decoder.decode(fid);
+        if (code != null) {
+            functions[fid] = code;
+            decoded++;
+        }
+        return code;
+    }
+
+    // Functions decoded so far.
+    int getDecodedCount() {
+        return decoded;
+    }
+
+    int getEntry() {
+        return entry;
+    }
+}
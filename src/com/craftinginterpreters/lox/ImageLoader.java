@@ -0,0 +1,158 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static com.craftinginterpreters.lox.InstructionType.*;
+
+// Reads the layout written by Output.gen back into an Image. An image with
+// Program.FLAG_INDEX is decoded lazily: the globals and the index up front,
+// each function the first time it is looked up.
+class ImageLoader {
+    static Image load(byte[] bytes) {
+        return load(ByteBuffer.wrap(bytes));
+    }
+
+    // Maps the file rather than reading it, so that loading an indexed image
+    // touches only the pages of the functions that run.
+    static Image load(Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(path + ": image larger than 2 GB");
+            return load(in.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    static Image load(ByteBuffer in) {
+        try {
+            return decode(in);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated image");
+        }
+    }
+
+    private static Image decode(ByteBuffer in) {
+        int magic = in.getInt();
+        if (magic != Program.MAGIC)
+            throw new IllegalArgumentException("bad magic " + Integer.toHexString(magic));
+        int version = in.getInt();
+
+        int globalCount = in.getInt();
+        byte[][] globals = new byte[globalCount][];
+        for (int i = 0; i < globalCount; i++) {
+            in.get(); // is_const
+            byte[] value = new byte[in.getInt()];
+            in.get(value);
+            globals[i] = value;
+        }
+
+        int functionCount = in.getInt();
+        if ((version & Program.FLAG_INDEX) != 0)
+            return indexed(in, version, globals, functionCount);
+        Image.Code[] functions = new Image.Code[Math.max(functionCount, 1)];
+        int entry = -1;
+        for (int i = 0; i < functionCount; i++) {
+            Image.Code code = readFunction(in, version);
+            if (code.fid >= functions.length)
+                functions = Arrays.copyOf(functions, Math.max(functions.length * 2, code.fid + 1));
+            if (functions[code.fid] != null)
+                throw new IllegalArgumentException("duplicate fid " + code.fid);
+            functions[code.fid] = code;
+            if (entry < 0)
+                entry = code.fid;
+        }
+        if (entry < 0)
+            throw new IllegalArgumentException("image has no functions");
+        return new Image(version, globals, functions, entry);
+    }
+
+    // `in` is at the first function. Checks the index against the image but
+    // leaves the functions themselves for Image to decode on demand.
+    private static Image indexed(ByteBuffer in, int version, byte[][] globals, int functionCount) {
+        int first = in.position();
+        int indexAt = (int) Math.min(in.getLong(in.limit() - 8), Integer.MAX_VALUE);
+        if (indexAt < first || indexAt > in.limit() - 12)
+            throw new IllegalArgumentException("bad index offset");
+        ByteBuffer index = in.duplicate();
+        index.position(indexAt);
+        int count = index.getInt();
+        if (count != functionCount || count <= 0 || count > (in.limit() - 12 - indexAt) / 16)
+            throw new IllegalArgumentException("index has " + count + " entries for " + functionCount + " functions");
+
+        int[] offsets = new int[16];
+        Arrays.fill(offsets, -1);
+        int entry = -1;
+        for (int i = 0; i < count; i++) {
+            int fid = index.getInt();
+            long offset = index.getLong();
+            int length = index.getInt();
+            if (fid < 0 || offset < first || length < headerSize(version) || offset + length > indexAt)
+                throw new IllegalArgumentException("bad index entry for fid " + fid);
+            if (fid >= offsets.length) {
+                int old = offsets.length;
+                offsets = Arrays.copyOf(offsets, Math.max(old * 2, fid + 1));
+                Arrays.fill(offsets, old, offsets.length, -1);
+            }
+            if (offsets[fid] >= 0)
+                throw new IllegalArgumentException("duplicate fid " + fid);
+            offsets[fid] = (int) offset;
+            if (entry < 0)
+                entry = fid;
+        }
+        int[] at = offsets;
+        return new Image(version, globals, new Image.Code[at.length], entry, fid -> {
+            if (at[fid] < 0)
+                return null;
+            ByteBuffer body = in.duplicate();
+            body.position(at[fid]);
+            try {
+                Image.Code code = readFunction(body, version);
+                if (code.fid != fid)
+                    throw new IllegalArgumentException("index puts fid " + fid + " where fid " + code.fid + " is");
+                return code;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("truncated function " + fid);
+            }
+        });
+    }
+
+    // Bytes before a function's first instruction.
+    static int headerSize(int version) {
+        return (version & Program.FLAG_MAX_STACK) != 0 ? 24 : 20;
+    }
+
+    private static Image.Code readFunction(ByteBuffer in, int version) {
+        int fid = in.getInt();
+        int returnSlots = in.getInt();
+        int paramSlots = in.getInt();
+        int locaSlots = in.getInt();
+        int maxStack = -1;
+        if ((version & Program.FLAG_MAX_STACK) != 0 && (maxStack = in.getInt()) < 0)
+            throw new IllegalArgumentException("fid " + fid + ": bad max stack " + maxStack);
+        int count = in.getInt();
+        // One extra ret, so running off the end of a body returns.
+        byte[] ops = new byte[count + 1];
+        long[] args = new long[count + 1];
+        ops[count] = (byte) ret.getNum();
+        for (int i = 0; i < count; i++) {
+            int op = in.get() & 0xff;
+            InstructionType type = InstructionType.fromNum(op);
+            if (type == null)
+                throw new IllegalArgumentException("bad opcode 0x" + Integer.toHexString(op));
+            ops[i] = (byte) op;
+            if (type.getOperandSize() == 8)
+                args[i] = in.getLong();
+            else if (type.getOperandSize() == 4)
+                args[i] = in.getInt();
+            if (type.isBranch())
+                args[i] += i + 1;
+        }
+        return new Image.Code(fid, returnSlots, paramSlots, locaSlots, maxStack, ops, args);
+    }
+}
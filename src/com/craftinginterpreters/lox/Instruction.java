@@ -7,10 +7,6 @@ class Instruction {
     long i64 = Long.MIN_VALUE;
     double f64 = Double.MAX_VALUE;
 
-    boolean isBreak() {
-        return i64 == Long.MAX_VALUE;
-    }
-
     boolean isFloat() {
         return i64 == Long.MIN_VALUE && f64 != Double.MAX_VALUE;
     }
@@ -31,9 +27,12 @@ class Instruction {
         return instructionType.getNum();
     }
 
+    InstructionType getType() {
+        return instructionType;
+    }
+
     boolean isJmp() {
-        return instructionType == br || instructionType == brFalse
-                || instructionType == brTrue || instructionType == ret
+        return instructionType.isBranch() || instructionType == ret
                 || instructionType == call || instructionType == callname;
     }
 
@@ -42,7 +41,7 @@ class Instruction {
     }
 
     boolean isBr() {
-        return instructionType == br || instructionType == brTrue || instructionType == brFalse;
+        return instructionType.isBranch();
     }
 
     @Override
@@ -1,55 +1,119 @@
 package com.craftinginterpreters.lox;
 
 enum InstructionType {
-    nop(0x00),
-    push(0x01),
-    pop(0x02),
-    popn(0x03),
-    loca(0x0a),
-    arga(0x0b),
-    globa(0x0c),
-    load64(0x13),
-    store64(0x17),
-    stackalloc(0x1a),
-    addi(0x20),
-    subi(0x21),
-    muli(0x22),
-    divi(0x23),
-    addf(0x24),
-    subf(0x25),
-    mulf(0x26),
-    divf(0x27),
-    not(0x2e),
-    cmpi(0x30),
-    cmpf(0x32),
-    negi(0x34),
-    negf(0x35),
-    itof(0x36),
-    ftoi(0x37),
-    setLt(0x39),
-    setGt(0x3a),
-    br(0x41),
-    brFalse(0x42),
-    brTrue(0x43),
-    call(0x48),
-    ret(0x49),
-    callname(0x4a),
-    scani(0x50),
-    scanc(0x51),
-    scanf(0x52),
-    printi(0x54),
-    printc(0x55),
-    printf(0x56),
-    prints(0x57),
-    println(0x58);
+    nop(0x00, 0, 0, 0),
+    push(0x01, 8, 0, 1),
+    pop(0x02, 0, 1, 0),
+    popn(0x03, 4, StackDepth.VARIABLE, 0),
+    loca(0x0a, 4, 0, 1),
+    arga(0x0b, 4, 0, 1),
+    globa(0x0c, 4, 0, 1),
+    load64(0x13, 0, 1, 1),
+    store64(0x17, 0, 2, 0),
+    stackalloc(0x1a, 4, 0, StackDepth.VARIABLE),
+    addi(0x20, 0, 2, 1),
+    subi(0x21, 0, 2, 1),
+    muli(0x22, 0, 2, 1),
+    divi(0x23, 0, 2, 1),
+    addf(0x24, 0, 2, 1),
+    subf(0x25, 0, 2, 1),
+    mulf(0x26, 0, 2, 1),
+    divf(0x27, 0, 2, 1),
+    not(0x2e, 0, 1, 1),
+    cmpi(0x30, 0, 2, 1),
+    cmpf(0x32, 0, 2, 1),
+    negi(0x34, 0, 1, 1),
+    negf(0x35, 0, 1, 1),
+    itof(0x36, 0, 1, 1),
+    ftoi(0x37, 0, 1, 1),
+    setLt(0x39, 0, 1, 1),
+    setGt(0x3a, 0, 1, 1),
+    br(0x41, 4, 0, 0),
+    brFalse(0x42, 4, 1, 0),
+    brTrue(0x43, 4, 1, 0),
+    call(0x48, 4, StackDepth.VARIABLE, StackDepth.VARIABLE),
+    ret(0x49, 0, 0, 0),
+    callname(0x4a, 4, StackDepth.VARIABLE, StackDepth.VARIABLE),
+    scani(0x50, 0, 0, 1),
+    scanc(0x51, 0, 0, 1),
+    scanf(0x52, 0, 0, 1),
+    printi(0x54, 0, 1, 0),
+    printc(0x55, 0, 1, 0),
+    printf(0x56, 0, 1, 0),
+    prints(0x57, 0, 1, 0),
+    println(0x58, 0, 0, 0),
+
+    // The extended set of Program.FLAG_SUPER: fusions of the shapes the
+    // Parser emits, selected by Superinstructions.
+    //
+    // loca|arga|globa n; load64
+    loadl(0x60, 4, 0, 1),
+    loada(0x61, 4, 0, 1),
+    loadg(0x62, 4, 0, 1),
+    // loca|arga|globa n; <value>; store64   (the address is not pushed)
+    storel(0x64, 4, 1, 0),
+    storea(0x65, 4, 1, 0),
+    storeg(0x66, 4, 1, 0),
+    // loca n += c, operand n << 32 | c as s32
+    incl(0x68, 8, 0, 0),
+    // cmpi, then branch on lhs == rhs, != , <, <=, >, >=
+    breqi(0x70, 4, 2, 0),
+    brnei(0x71, 4, 2, 0),
+    brlti(0x72, 4, 2, 0),
+    brlei(0x73, 4, 2, 0),
+    brgti(0x74, 4, 2, 0),
+    brgei(0x75, 4, 2, 0);
+
+    private static final InstructionType[] BY_NUM = new InstructionType[256];
+
+    static {
+        for (InstructionType type : values())
+            BY_NUM[type.num] = type;
+    }
 
     private int num;
+    // Width in bytes of the operand following the opcode in an image.
+    private int operandSize;
+    // Operand stack slots taken and left, or StackDepth.VARIABLE.
+    private int pops;
+    private int pushes;
 
-    InstructionType(int num) {
+    InstructionType(int num, int operandSize, int pops, int pushes) {
         this.num = num;
+        this.operandSize = operandSize;
+        this.pops = pops;
+        this.pushes = pushes;
     }
 
     int getNum() {
         return num;
     }
+
+    int getOperandSize() {
+        return operandSize;
+    }
+
+    int getPops() {
+        return pops;
+    }
+
+    int getPushes() {
+        return pushes;
+    }
+
+    // br, brTrue, brFalse and the fused compare-and-branches: their operand
+    // is an offset from the next instruction.
+    boolean isBranch() {
+        return this == br || this == brTrue || this == brFalse || num >= breqi.num && num <= brgei.num;
+    }
+
+    // Only valid in images with Program.FLAG_SUPER.
+    boolean isExtended() {
+        return num >= loadl.num;
+    }
+
+    // null when `num` is not an opcode.
+    static InstructionType fromNum(int num) {
+        return BY_NUM[num & 0xff];
+    }
 }
@@ -0,0 +1,435 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+
+// Reference executor for o0 images.
+//
+// All memory is one long[]: globals occupy slots [0, globalCount) and the
+// stack grows upward after them, so every address pushed by loca/arga/globa
+// is a plain slot index. A call lays out
+//
+//   [return slots][params][prev bp][prev ip][prev fid][locals][operands...]
+//                                                      ^ bp
+//
+// which is all the state a frame needs, so the dispatch loop allocates
+// nothing. When the image records max stack, a frame that would not fit is
+// refused on entry rather than faulting somewhere inside it.
+class Interpreter {
+    static final int DEFAULT_SLOTS = 1 << 20;
+
+    private final Image image;
+    private final long[] mem;
+    private final Input in;
+    private final PrintStream out;
+    private long dispatched;
+    // Translated functions, once compile() has run.
+    private JitRuntime jit;
+
+    Interpreter(Image image, InputStream in, PrintStream out) {
+        this(image, in, out, DEFAULT_SLOTS);
+    }
+
+    Interpreter(Image image, InputStream in, PrintStream out, int slots) {
+        this.image = image;
+        this.mem = new long[image.getGlobalCount() + slots];
+        this.in = new Input(in);
+        this.out = out;
+    }
+
+    // Instructions executed by the last run().
+    long getDispatched() {
+        return dispatched;
+    }
+
+    // Translates what it can of the image to JVM bytecode; from then on
+    // those functions run as translated, wherever they are called from.
+    // Returns how many were translated.
+    int compile() {
+        jit = new JitRuntime(this, in, out, new JitCompiler(image).compile());
+        return jit.getCompiledCount();
+    }
+
+    void run() {
+        dispatched = 0;
+        int entry = image.getEntry();
+        try {
+            if (jit != null && jit.isCompiled(entry))
+                jit.invoke(entry, mem, image.getGlobalCount());
+            else
+                invoke(entry, image.getGlobalCount());
+        } finally {
+            out.flush();
+        }
+    }
+
+    // Runs function `fid` on the frame whose return slots start at
+    // `argBase`, until it returns.
+    void invoke(int fid, int argBase) {
+        Image.Code fn = image.getFunction(fid);
+        if (fn == null)
+            throw new VmError("call to undefined function " + fid);
+        byte[] ops = fn.ops;
+        long[] args = fn.args;
+        long[] mem = this.mem;
+        int sp = argBase + fn.returnSlots + fn.paramSlots;
+        if (sp + fn.frameSlots > mem.length)
+            throw new VmError("stack overflow in fid " + fid);
+        mem[sp] = -1;
+        mem[sp + 1] = 0;
+        mem[sp + 2] = -1;
+        sp += 3;
+        int bp = sp;
+        for (int i = 0; i < fn.locaSlots; i++)
+            mem[sp + i] = 0;
+        sp += fn.locaSlots;
+        int ip = 0;
+        int depth = 0;
+        long count = 0;
+
+        try {
+            while (true) {
+                count++;
+                int op = ops[ip] & 0xff;
+                long arg = args[ip];
+                ip++;
+                switch (op) {
+                    case 0x00: // nop
+                        break;
+                    case 0x01: // push
+                        mem[sp++] = arg;
+                        break;
+                    case 0x02: // pop
+                        sp--;
+                        break;
+                    case 0x03: // popn
+                        sp -= (int) arg;
+                        break;
+                    case 0x0a: // loca
+                        mem[sp++] = bp + arg;
+                        break;
+                    case 0x0b: // arga
+                        mem[sp++] = argBase + arg;
+                        break;
+                    case 0x0c: // globa
+                        mem[sp++] = arg;
+                        break;
+                    case 0x13: // load64
+                        mem[sp - 1] = mem[(int) mem[sp - 1]];
+                        break;
+                    case 0x17: // store64
+                        mem[(int) mem[sp - 2]] = mem[sp - 1];
+                        sp -= 2;
+                        break;
+                    case 0x1a: { // stackalloc
+                        int n = (int) arg;
+                        for (int i = 0; i < n; i++)
+                            mem[sp + i] = 0;
+                        sp += n;
+                        break;
+                    }
+                    case 0x20: // addi
+                        sp--;
+                        mem[sp - 1] += mem[sp];
+                        break;
+                    case 0x21: // subi
+                        sp--;
+                        mem[sp - 1] -= mem[sp];
+                        break;
+                    case 0x22: // muli
+                        sp--;
+                        mem[sp - 1] *= mem[sp];
+                        break;
+                    case 0x23: // divi
+                        sp--;
+                        mem[sp - 1] /= mem[sp];
+                        break;
+                    case 0x24: // addf
+                        sp--;
+                        mem[sp - 1] = bits(real(mem[sp - 1]) + real(mem[sp]));
+                        break;
+                    case 0x25: // subf
+                        sp--;
+                        mem[sp - 1] = bits(real(mem[sp - 1]) - real(mem[sp]));
+                        break;
+                    case 0x26: // mulf
+                        sp--;
+                        mem[sp - 1] = bits(real(mem[sp - 1]) * real(mem[sp]));
+                        break;
+                    case 0x27: // divf
+                        sp--;
+                        mem[sp - 1] = bits(real(mem[sp - 1]) / real(mem[sp]));
+                        break;
+                    case 0x2e: // not
+                        mem[sp - 1] = mem[sp - 1] == 0 ? 1 : 0;
+                        break;
+                    case 0x30: // cmpi
+                        sp--;
+                        mem[sp - 1] = Long.compare(mem[sp - 1], mem[sp]);
+                        break;
+                    case 0x32: // cmpf
+                        sp--;
+                        mem[sp - 1] = cmpf(real(mem[sp - 1]), real(mem[sp]));
+                        break;
+                    case 0x34: // negi
+                        mem[sp - 1] = -mem[sp - 1];
+                        break;
+                    case 0x35: // negf
+                        mem[sp - 1] = bits(-real(mem[sp - 1]));
+                        break;
+                    case 0x36: // itof
+                        mem[sp - 1] = bits((double) mem[sp - 1]);
+                        break;
+                    case 0x37: // ftoi
+                        mem[sp - 1] = (long) real(mem[sp - 1]);
+                        break;
+                    case 0x39: // setLt
+                        mem[sp - 1] = mem[sp - 1] < 0 ? 1 : 0;
+                        break;
+                    case 0x3a: // setGt
+                        mem[sp - 1] = mem[sp - 1] > 0 ? 1 : 0;
+                        break;
+                    case 0x41: // br
+                        ip = (int) arg;
+                        break;
+                    case 0x42: // brFalse
+                        if (mem[--sp] == 0)
+                            ip = (int) arg;
+                        break;
+                    case 0x43: // brTrue
+                        if (mem[--sp] != 0)
+                            ip = (int) arg;
+                        break;
+                    case 0x48: { // call
+                        Image.Code callee = image.getDecoded((int) arg);
+                        if (callee == null && (callee = image.getFunction((int) arg)) == null)
+                            throw new VmError("call to undefined function " + arg);
+                        if (jit != null && jit.isCompiled(callee.fid)) {
+                            int base = sp - callee.paramSlots - callee.returnSlots;
+                            jit.invoke(callee.fid, mem, base);
+                            sp = base + callee.returnSlots;
+                            break;
+                        }
+                        if (sp + callee.frameSlots > mem.length)
+                            throw new VmError("stack overflow in fid " + callee.fid);
+                        mem[sp] = bp;
+                        mem[sp + 1] = ip;
+                        mem[sp + 2] = fn.fid;
+                        sp += 3;
+                        bp = sp;
+                        argBase = bp - 3 - callee.paramSlots - callee.returnSlots;
+                        for (int i = 0; i < callee.locaSlots; i++)
+                            mem[sp + i] = 0;
+                        sp += callee.locaSlots;
+                        fn = callee;
+                        ops = fn.ops;
+                        args = fn.args;
+                        ip = 0;
+                        depth++;
+                        break;
+                    }
+                    case 0x49: { // ret
+                        if (depth-- == 0)
+                            return;
+                        int caller = (int) mem[bp - 1];
+                        sp = argBase + fn.returnSlots;
+                        ip = (int) mem[bp - 2];
+                        bp = (int) mem[bp - 3];
+                        fn = image.getDecoded(caller);
+                        ops = fn.ops;
+                        args = fn.args;
+                        argBase = bp - 3 - fn.paramSlots - fn.returnSlots;
+                        break;
+                    }
+                    case 0x50: // scani
+                        mem[sp++] = in.nextLong();
+                        break;
+                    case 0x51: // scanc
+                        mem[sp++] = in.nextChar();
+                        break;
+                    case 0x52: // scanf
+                        mem[sp++] = bits(in.nextDouble());
+                        break;
+                    case 0x54: // printi
+                        out.print(mem[--sp]);
+                        break;
+                    case 0x55: // printc
+                        out.print((char) mem[--sp]);
+                        break;
+                    case 0x56: // printf
+                        out.print(formatDouble(real(mem[--sp])));
+                        break;
+                    case 0x57: // prints
+                        printString((int) mem[--sp]);
+                        break;
+                    case 0x58: // println
+                        out.println();
+                        break;
+                    case 0x60: // loadl
+                        mem[sp++] = mem[bp + (int) arg];
+                        break;
+                    case 0x61: // loada
+                        mem[sp++] = mem[argBase + (int) arg];
+                        break;
+                    case 0x62: // loadg
+                        mem[sp++] = mem[(int) arg];
+                        break;
+                    case 0x64: // storel
+                        mem[bp + (int) arg] = mem[--sp];
+                        break;
+                    case 0x65: // storea
+                        mem[argBase + (int) arg] = mem[--sp];
+                        break;
+                    case 0x66: // storeg
+                        mem[(int) arg] = mem[--sp];
+                        break;
+                    case 0x68: // incl
+                        mem[bp + (int) (arg >>> 32)] += (int) arg;
+                        break;
+                    case 0x70: // breqi
+                        sp -= 2;
+                        if (mem[sp] == mem[sp + 1])
+                            ip = (int) arg;
+                        break;
+                    case 0x71: // brnei
+                        sp -= 2;
+                        if (mem[sp] != mem[sp + 1])
+                            ip = (int) arg;
+                        break;
+                    case 0x72: // brlti
+                        sp -= 2;
+                        if (mem[sp] < mem[sp + 1])
+                            ip = (int) arg;
+                        break;
+                    case 0x73: // brlei
+                        sp -= 2;
+                        if (mem[sp] <= mem[sp + 1])
+                            ip = (int) arg;
+                        break;
+                    case 0x74: // brgti
+                        sp -= 2;
+                        if (mem[sp] > mem[sp + 1])
+                            ip = (int) arg;
+                        break;
+                    case 0x75: // brgei
+                        sp -= 2;
+                        if (mem[sp] >= mem[sp + 1])
+                            ip = (int) arg;
+                        break;
+                    default:
+                        throw new VmError("unsupported opcode 0x" + Integer.toHexString(op));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new VmError("stack overflow or bad address in fid " + fn.fid + " at " + (ip - 1));
+        } catch (ArithmeticException e) {
+            throw new VmError("division by zero in fid " + fn.fid + " at " + (ip - 1));
+        } finally {
+            dispatched += count;
+        }
+    }
+
+    void printString(int global) {
+        byte[] value = image.getGlobal(global);
+        for (byte b : value)
+            out.print((char) (b & 0xff));
+    }
+
+    static double real(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    static long cmpf(double lhs, double rhs) {
+        return lhs < rhs ? -1 : lhs > rhs ? 1 : 0;
+    }
+
+    static String formatDouble(double value) {
+        if (Double.isNaN(value))
+            return "NaN";
+        if (Double.isInfinite(value))
+            return value > 0 ? "inf" : "-inf";
+        if (value == 0)
+            return "0";
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    static class VmError extends RuntimeException {
+        VmError(String message) {
+            super(message);
+        }
+    }
+
+    // Whitespace-separated numbers and raw characters from stdin.
+    static class Input {
+        private final InputStream in;
+        private final byte[] buf = new byte[1 << 13];
+        private int pos;
+        private int len;
+
+        Input(InputStream in) {
+            this.in = in;
+        }
+
+        long nextLong() {
+            String token = nextToken();
+            try {
+                return Long.parseLong(token);
+            } catch (NumberFormatException e) {
+                throw new VmError("expected an integer on input, got '" + token + "'");
+            }
+        }
+
+        double nextDouble() {
+            String token = nextToken();
+            try {
+                return Double.parseDouble(token);
+            } catch (NumberFormatException e) {
+                throw new VmError("expected a double on input, got '" + token + "'");
+            }
+        }
+
+        long nextChar() {
+            int c = read();
+            if (c < 0)
+                throw new VmError("unexpected end of input");
+            return c;
+        }
+
+        private String nextToken() {
+            int c = read();
+            while (c >= 0 && Character.isWhitespace(c))
+                c = read();
+            if (c < 0)
+                throw new VmError("unexpected end of input");
+            StringBuilder sb = new StringBuilder();
+            while (c >= 0 && !Character.isWhitespace(c)) {
+                sb.append((char) c);
+                c = read();
+            }
+            return sb.toString();
+        }
+
+        private int read() {
+            if (pos == len) {
+                try {
+                    len = in.read(buf, 0, buf.length);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                pos = 0;
+                if (len <= 0) {
+                    len = 0;
+                    return -1;
+                }
+            }
+            return buf[pos++] & 0xff;
+        }
+    }
+}
@@ -0,0 +1,754 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.InstructionType.*;
+
+// Translates the functions of an Image into JVM methods, so that HotSpot can
+// compile hot o0 code to machine code like any other Java.
+//
+// Function `fid` becomes
+//
+//   public static void f<fid>(JitRuntime rt, long[] mem, int argBase)
+//
+// working on the Interpreter's memory with the same frame layout, so either
+// tier can call the other. The operand stack is resolved statically: every
+// instruction has a fixed stack depth, and slot d is JVM local S(d). Locals
+// and params whose address is only ever loaded from or stored to become JVM
+// locals too; everything else stays in `mem`. Arguments are spilled to
+// `mem` at a call and return values read back after it.
+//
+// A function is left to the interpreter, with a stub that calls back into
+// it, when its depth is not fixed, it calls a fid the image lacks, it uses
+// an opcode the interpreter does not run, or its translation is too big for
+// one JVM method. The line number of each instruction is its o0 index + 1,
+// so faults can be reported as the interpreter would.
+class JitCompiler {
+    static final String PACKAGE = "o0.";
+    private static final String RUNTIME = "com/craftinginterpreters/lox/JitRuntime";
+    private static final String DESCRIPTOR = "(L" + RUNTIME + ";[JI)V";
+    private static final MethodType TYPE = MethodType.methodType(void.class, JitRuntime.class, long[].class, int.class);
+    private static final int MAX_FUNCTIONS_PER_CLASS = 512;
+    // Leaves headroom under the 65535-entry constant pool.
+    private static final int MAX_POOL_PER_CLASS = 60000;
+    // Keeps every branch offset within a signed 16-bit jump.
+    private static final int MAX_CODE = 32767;
+
+    // JVM opcodes
+    private static final int LCONST_0 = 0x09, LCONST_1 = 0x0a, BIPUSH = 0x10, SIPUSH = 0x11,
+            LDC_W = 0x13, LDC2_W = 0x14, LLOAD = 0x16, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b,
+            ILOAD_2 = 0x1c, ILOAD_3 = 0x1d, ISTORE_3 = 0x3e, LSTORE = 0x37, LALOAD = 0x2f,
+            LASTORE = 0x50, IADD = 0x60, LADD = 0x61, LSUB = 0x65, LMUL = 0x69, LDIV = 0x6d,
+            DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, LNEG = 0x75, DNEG = 0x77,
+            I2L = 0x85, L2I = 0x88, L2D = 0x8a, D2L = 0x8f, LCMP = 0x94, IFEQ = 0x99, IFNE = 0x9a,
+            IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e, DUP2 = 0x5c,
+            GOTO = 0xa7, RETURN = 0xb1, INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8, WIDE = 0xc4;
+
+    private final Image image;
+    private final StackDepth.Signatures signatures;
+    // Class each fid's method lives in, by fid; null where there is no function.
+    private String[] owner;
+
+    JitCompiler(Image image) {
+        this.image = image;
+        this.signatures = StackDepth.of(image);
+    }
+
+    // Method handles by fid for every function that was translated.
+    MethodHandle[] compile() {
+        int fids = image.getFunctionLimit();
+        owner = new String[fids];
+        Analysis[] analyses = new Analysis[fids];
+
+        // Pool use is bounded up front, so each class's members are fixed
+        // before any code that calls them is generated.
+        Map<String, ClassFile> classes = new HashMap<>();
+        int classIndex = 0;
+        int members = 0;
+        int pool = MAX_POOL_PER_CLASS;
+        for (int fid = 0; fid < fids; fid++) {
+            Image.Code fn = image.getFunction(fid);
+            if (fn == null)
+                continue;
+            analyses[fid] = analyze(fn);
+            int need = analyses[fid] == null ? 8 : analyses[fid].poolBound;
+            if (members == MAX_FUNCTIONS_PER_CLASS || pool + need > MAX_POOL_PER_CLASS) {
+                classes.put("o0/Code" + classIndex, new ClassFile("o0/Code" + classIndex));
+                classIndex++;
+                members = 0;
+                pool = 64;
+            }
+            owner[fid] = "o0/Code" + (classIndex - 1);
+            members++;
+            pool += need;
+        }
+
+        boolean[] translated = new boolean[fids];
+        for (int fid = 0; fid < fids; fid++) {
+            if (owner[fid] == null)
+                continue;
+            ClassFile cf = classes.get(owner[fid]);
+            ClassFile.Code code = analyses[fid] == null ? null : translate(image.getFunction(fid), analyses[fid], cf);
+            if (code == null)
+                code = stub(fid, cf);
+            else
+                translated[fid] = true;
+            cf.addMethod("f" + fid, DESCRIPTOR, code);
+        }
+
+        Loader loader = new Loader(classes);
+        MethodHandle[] handles = new MethodHandle[fids];
+        try {
+            for (int fid = 0; fid < fids; fid++) {
+                if (translated[fid]) {
+                    Class<?> cls = loader.loadClass(owner[fid].replace('/', '.'));
+                    handles[fid] = MethodHandles.publicLookup().findStatic(cls, "f" + fid, TYPE);
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        return handles;
+    }
+
+    // What translate() needs to know before emitting anything.
+    private static final class Analysis {
+        StackDepth stack;
+        int maxDepth;
+        // For load64/store64 whose address is a known local or param, its
+        // index in `promoted` numbering (loca k is k, arga k is locaSlots + k);
+        // otherwise -1.
+        int[] direct;
+        // By local/param index: kept in a JVM local rather than in `mem`.
+        boolean[] promoted;
+        int poolBound;
+    }
+
+    private Analysis analyze(Image.Code fn) {
+        byte[] ops = fn.ops;
+        long[] args = fn.args;
+        int n = ops.length;
+        if (n > 0xfffe)
+            return null;
+        StackDepth stack = StackDepth.of(fn, signatures);
+        if (!stack.isValid() || stack.getMax() > 16000)
+            return null;
+        boolean[] leader = new boolean[n];
+        int pool = 8;
+        for (int i = 0; i < n; i++) {
+            if (stack.getDepth(i) < 0)
+                continue;
+            InstructionType type = InstructionType.fromNum(ops[i]);
+            // a long or int constant, a call's method reference, or incl's
+            // slot and increment
+            pool += type == call ? 6 : type == incl ? 4 : 2;
+            if (type.isBranch()) {
+                // StackDepth lets a branch reach n; here the last
+                // instruction is the loader's ret
+                if (args[i] >= n)
+                    return null;
+                leader[(int) args[i]] = true;
+                if (i + 1 < n)
+                    leader[i + 1] = true;
+            }
+            if (type != br && type != ret && i + 1 >= n)
+                return null;
+        }
+
+        Analysis a = new Analysis();
+        a.stack = stack;
+        a.maxDepth = stack.getMax();
+        a.poolBound = pool + 40;
+        findDirect(fn, a, leader);
+        return a;
+    }
+
+    // Tracks, within each basic block, which stack slots hold an address
+    // pushed by loca or arga. A local or param is promoted unless such an
+    // address is used as anything but the address of a load64 or store64,
+    // or is still on the stack at a block boundary. Return slots are read by
+    // the caller and never promoted.
+    private void findDirect(Image.Code fn, Analysis a, boolean[] leader) {
+        byte[] ops = fn.ops;
+        long[] args = fn.args;
+        int n = ops.length;
+        int vars = fn.locaSlots + fn.paramSlots + fn.returnSlots;
+        boolean[] escapes = new boolean[vars];
+        for (int k = 0; k < fn.returnSlots; k++)
+            escapes[fn.locaSlots + k] = true;
+        int[] known = new int[a.maxDepth + 1];
+        int[] direct = new int[n];
+        Arrays.fill(direct, -1);
+        for (int i = 0; i < n; i++) {
+            int d = a.stack.getDepth(i);
+            if (d < 0)
+                continue;
+            if (leader[i])
+                escapeAll(known, d, escapes);
+            InstructionType type = InstructionType.fromNum(ops[i]);
+            int pops = a.stack.pops(i);
+            int pushes = a.stack.pushes(i);
+            if (type == load64 && known[d - 1] >= 0) {
+                direct[i] = known[d - 1];
+            } else if (type == store64 && known[d - 2] >= 0) {
+                direct[i] = known[d - 2];
+                escape(known, d - 1, escapes);
+            } else if (type != pop && type != popn) {
+                for (int k = d - pops; k < d; k++)
+                    escape(known, k, escapes);
+            }
+            int after = d - pops + pushes;
+            for (int k = d - pops; k < after; k++)
+                known[k] = -1;
+            if (type == loca && args[i] >= 0 && args[i] < fn.locaSlots)
+                known[d] = (int) args[i];
+            else if (type == arga && args[i] >= 0 && args[i] < fn.paramSlots + fn.returnSlots)
+                known[d] = fn.locaSlots + (int) args[i];
+            if (type.isBranch())
+                escapeAll(known, after, escapes);
+        }
+        for (int i = 0; i < n; i++) {
+            if (direct[i] >= 0 && escapes[direct[i]])
+                direct[i] = -1;
+        }
+        boolean[] promoted = new boolean[vars];
+        for (int k = 0; k < vars; k++)
+            promoted[k] = !escapes[k];
+        a.direct = direct;
+        a.promoted = promoted;
+    }
+
+    private static void escape(int[] known, int slot, boolean[] escapes) {
+        if (known[slot] >= 0)
+            escapes[known[slot]] = true;
+        known[slot] = -1;
+    }
+
+    private static void escapeAll(int[] known, int depth, boolean[] escapes) {
+        for (int k = 0; k < depth; k++)
+            escape(known, k, escapes);
+    }
+
+    // The method body for `fn`, or null if it does not fit in one.
+    private ClassFile.Code translate(Image.Code fn, Analysis a, ClassFile cf) {
+        int vars = a.promoted.length;
+        int[] local = new int[vars];
+        int next = 4;
+        for (int k = 0; k < vars; k++) {
+            if (a.promoted[k]) {
+                local[k] = next;
+                next += 2;
+            }
+        }
+        int stackBase = next;
+        if (stackBase + 2 * (a.maxDepth + 1) > 0xffff)
+            return null;
+        Emitter e = new Emitter(cf, fn.ops.length);
+        e.code.maxLocals = stackBase + 2 * (a.maxDepth + 1);
+        e.code.maxStack = 8;
+
+        e.code.line(1);
+        if (fn.frameSlots > 0) {
+            e.op(ALOAD_0);
+            e.op(ALOAD_1);
+            e.op(ILOAD_2);
+            e.iconst(fn.returnSlots + fn.paramSlots + fn.frameSlots);
+            e.op(IADD);
+            e.iconst(fn.fid);
+            e.invoke(INVOKEVIRTUAL, RUNTIME, "enter", "([JII)V");
+        }
+        // bp = argBase + returns + params + 3 linkage slots
+        e.op(ILOAD_2);
+        e.iconst(fn.returnSlots + fn.paramSlots + 3);
+        e.op(IADD);
+        e.op(ISTORE_3);
+        int inMem = 0;
+        for (int k = 0; k < fn.locaSlots; k++) {
+            if (a.promoted[k]) {
+                e.op(LCONST_0);
+                e.lstore(local[k]);
+            } else {
+                inMem++;
+            }
+        }
+        if (inMem > 0) {
+            e.op(ALOAD_1);
+            e.op(ILOAD_3);
+            e.op(ILOAD_3);
+            e.iconst(fn.locaSlots);
+            e.op(IADD);
+            e.op(LCONST_0);
+            e.invoke(INVOKESTATIC, "java/util/Arrays", "fill", "([JIIJ)V");
+        }
+        for (int k = fn.locaSlots; k < vars; k++) {
+            if (a.promoted[k]) {
+                e.op(ALOAD_1);
+                e.op(ILOAD_2);
+                e.iconst(k - fn.locaSlots);
+                e.op(IADD);
+                e.op(LALOAD);
+                e.lstore(local[k]);
+            }
+        }
+
+        byte[] ops = fn.ops;
+        long[] args = fn.args;
+        for (int i = 0; i < ops.length; i++) {
+            int d = a.stack.getDepth(i);
+            if (d < 0)
+                continue;
+            e.bind(i);
+            long arg = args[i];
+            int top = stackBase + 2 * (d - 1);
+            int above = stackBase + 2 * d;
+            int second = stackBase + 2 * (d - 2);
+            switch (InstructionType.fromNum(ops[i])) {
+                case nop: case pop: case popn:
+                    break;
+                case push: case globa:
+                    e.lconst(arg);
+                    e.lstore(above);
+                    break;
+                case loca:
+                case arga: {
+                    // an address only used directly needs no value
+                    int var = ops[i] == loca.getNum() ? (int) arg : fn.locaSlots + (int) arg;
+                    if (var >= 0 && var < vars && a.promoted[var])
+                        break;
+                    e.op(ops[i] == loca.getNum() ? ILOAD_3 : ILOAD_2);
+                    e.iconst((int) arg);
+                    e.op(IADD);
+                    e.op(I2L);
+                    e.lstore(above);
+                    break;
+                }
+                case load64:
+                    if (a.direct[i] >= 0) {
+                        e.lload(local[a.direct[i]]);
+                    } else {
+                        e.op(ALOAD_1);
+                        e.lload(top);
+                        e.op(L2I);
+                        e.op(LALOAD);
+                    }
+                    e.lstore(top);
+                    break;
+                case store64:
+                    if (a.direct[i] >= 0) {
+                        e.lload(top);
+                        e.lstore(local[a.direct[i]]);
+                    } else {
+                        e.op(ALOAD_1);
+                        e.lload(second);
+                        e.op(L2I);
+                        e.lload(top);
+                        e.op(LASTORE);
+                    }
+                    break;
+                case stackalloc:
+                    for (int k = 0; k < arg; k++) {
+                        e.op(LCONST_0);
+                        e.lstore(above + 2 * k);
+                    }
+                    break;
+                case addi:
+                    e.binary(second, top, LADD);
+                    break;
+                case subi:
+                    e.binary(second, top, LSUB);
+                    break;
+                case muli:
+                    e.binary(second, top, LMUL);
+                    break;
+                case divi:
+                    e.binary(second, top, LDIV);
+                    break;
+                case cmpi:
+                    e.lload(second);
+                    e.lload(top);
+                    e.op(LCMP);
+                    e.op(I2L);
+                    e.lstore(second);
+                    break;
+                case addf:
+                    e.binaryDouble(second, top, DADD);
+                    break;
+                case subf:
+                    e.binaryDouble(second, top, DSUB);
+                    break;
+                case mulf:
+                    e.binaryDouble(second, top, DMUL);
+                    break;
+                case divf:
+                    e.binaryDouble(second, top, DDIV);
+                    break;
+                case cmpf:
+                    e.lload(second);
+                    e.lload(top);
+                    e.invoke(INVOKESTATIC, RUNTIME, "cmpf", "(JJ)J");
+                    e.lstore(second);
+                    break;
+                case not:
+                    e.unary(top, "not");
+                    break;
+                case setLt:
+                    e.unary(top, "setLt");
+                    break;
+                case setGt:
+                    e.unary(top, "setGt");
+                    break;
+                case negi:
+                    e.lload(top);
+                    e.op(LNEG);
+                    e.lstore(top);
+                    break;
+                case negf:
+                    e.lload(top);
+                    e.toDouble();
+                    e.op(DNEG);
+                    e.fromDouble();
+                    e.lstore(top);
+                    break;
+                case itof:
+                    e.lload(top);
+                    e.op(L2D);
+                    e.fromDouble();
+                    e.lstore(top);
+                    break;
+                case ftoi:
+                    e.lload(top);
+                    e.toDouble();
+                    e.op(D2L);
+                    e.lstore(top);
+                    break;
+                case br:
+                    e.jump(GOTO, (int) arg);
+                    break;
+                case brFalse:
+                case brTrue:
+                    e.lload(top);
+                    e.op(LCONST_0);
+                    e.op(LCMP);
+                    e.jump(ops[i] == brTrue.getNum() ? IFNE : IFEQ, (int) arg);
+                    break;
+                case loadl:
+                case loada: {
+                    int var = ops[i] == loadl.getNum() ? (int) arg : fn.locaSlots + (int) arg;
+                    if (var >= 0 && var < vars && a.promoted[var]) {
+                        e.lload(local[var]);
+                    } else {
+                        e.op(ALOAD_1);
+                        e.op(ops[i] == loadl.getNum() ? ILOAD_3 : ILOAD_2);
+                        e.iconst((int) arg);
+                        e.op(IADD);
+                        e.op(LALOAD);
+                    }
+                    e.lstore(above);
+                    break;
+                }
+                case loadg:
+                    e.op(ALOAD_1);
+                    e.iconst((int) arg);
+                    e.op(LALOAD);
+                    e.lstore(above);
+                    break;
+                case storel:
+                case storea: {
+                    int var = ops[i] == storel.getNum() ? (int) arg : fn.locaSlots + (int) arg;
+                    if (var >= 0 && var < vars && a.promoted[var]) {
+                        e.lload(top);
+                        e.lstore(local[var]);
+                    } else {
+                        e.op(ALOAD_1);
+                        e.op(ops[i] == storel.getNum() ? ILOAD_3 : ILOAD_2);
+                        e.iconst((int) arg);
+                        e.op(IADD);
+                        e.lload(top);
+                        e.op(LASTORE);
+                    }
+                    break;
+                }
+                case storeg:
+                    e.op(ALOAD_1);
+                    e.iconst((int) arg);
+                    e.lload(top);
+                    e.op(LASTORE);
+                    break;
+                case incl: {
+                    int var = (int) (arg >>> 32);
+                    if (var >= 0 && var < vars && a.promoted[var]) {
+                        e.lload(local[var]);
+                        e.lconst((int) arg);
+                        e.op(LADD);
+                        e.lstore(local[var]);
+                    } else {
+                        e.memSlot(var);
+                        e.op(DUP2);
+                        e.op(LALOAD);
+                        e.lconst((int) arg);
+                        e.op(LADD);
+                        e.op(LASTORE);
+                    }
+                    break;
+                }
+                case breqi: case brnei: case brlti: case brlei: case brgti: case brgei:
+                    e.lload(second);
+                    e.lload(top);
+                    e.op(LCMP);
+                    e.jump(compareJump(InstructionType.fromNum(ops[i])), (int) arg);
+                    break;
+                case call: {
+                    Image.Code callee = image.getFunction((int) arg);
+                    int count = callee.returnSlots + callee.paramSlots;
+                    int base = d - count;
+                    for (int k = 0; k < count; k++) {
+                        e.memSlot(fn.locaSlots + base + k);
+                        e.lload(stackBase + 2 * (base + k));
+                        e.op(LASTORE);
+                    }
+                    e.op(ALOAD_0);
+                    e.op(ALOAD_1);
+                    e.op(ILOAD_3);
+                    e.iconst(fn.locaSlots + base);
+                    e.op(IADD);
+                    e.invoke(INVOKESTATIC, owner[(int) arg], "f" + arg, DESCRIPTOR);
+                    for (int k = 0; k < callee.returnSlots; k++) {
+                        e.memSlot(fn.locaSlots + base + k);
+                        e.op(LALOAD);
+                        e.lstore(stackBase + 2 * (base + k));
+                    }
+                    break;
+                }
+                case ret:
+                    e.op(RETURN);
+                    break;
+                case scani:
+                    e.read("scani", above);
+                    break;
+                case scanc:
+                    e.read("scanc", above);
+                    break;
+                case scanf:
+                    e.read("scanf", above);
+                    break;
+                case printi:
+                    e.write("printi", top);
+                    break;
+                case printc:
+                    e.write("printc", top);
+                    break;
+                case printf:
+                    e.write("printf", top);
+                    break;
+                case prints:
+                    e.write("prints", top);
+                    break;
+                case println:
+                    e.op(ALOAD_0);
+                    e.invoke(INVOKEVIRTUAL, RUNTIME, "println", "()V");
+                    break;
+                default:
+                    return null;
+            }
+            if (e.code.length > MAX_CODE)
+                return null;
+        }
+        e.patchJumps();
+        return e.code;
+    }
+
+    private static int compareJump(InstructionType type) {
+        switch (type) {
+            case breqi:
+                return IFEQ;
+            case brnei:
+                return IFNE;
+            case brlti:
+                return IFLT;
+            case brlei:
+                return IFLE;
+            case brgti:
+                return IFGT;
+            default:
+                return IFGE;
+        }
+    }
+
+    // f<fid> for a function left to the interpreter.
+    private ClassFile.Code stub(int fid, ClassFile cf) {
+        Emitter e = new Emitter(cf, 0);
+        e.code.maxLocals = 3;
+        e.code.maxStack = 4;
+        e.code.line(1);
+        e.op(ALOAD_0);
+        e.iconst(fid);
+        e.op(ALOAD_1);
+        e.op(ILOAD_2);
+        e.invoke(INVOKEVIRTUAL, RUNTIME, "call", "(I[JI)V");
+        e.op(RETURN);
+        return e.code;
+    }
+
+    private static final class Emitter {
+        final ClassFile cf;
+        final ClassFile.Code code = new ClassFile.Code();
+        // JVM offset of each o0 instruction; jumps to it, patched at the end
+        final int[] start;
+        int[] jumps = new int[16];
+        int jumpCount;
+
+        Emitter(ClassFile cf, int instructions) {
+            this.cf = cf;
+            this.start = new int[instructions];
+        }
+
+        void bind(int instruction) {
+            start[instruction] = code.length;
+            code.line(instruction + 1);
+        }
+
+        void op(int opcode) {
+            code.u1(opcode);
+        }
+
+        void iconst(int v) {
+            if (v >= -1 && v <= 5) {
+                code.u1(0x03 + v);
+            } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                code.u1(BIPUSH);
+                code.u1(v);
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                code.u1(SIPUSH);
+                code.u2(v);
+            } else {
+                code.u1(LDC_W);
+                code.u2(cf.intConstant(v));
+            }
+        }
+
+        void lconst(long v) {
+            if (v == 0 || v == 1) {
+                code.u1(LCONST_0 + (int) v);
+            } else {
+                code.u1(LDC2_W);
+                code.u2(cf.longConstant(v));
+            }
+        }
+
+        void lload(int local) {
+            localOp(LLOAD, local);
+        }
+
+        void lstore(int local) {
+            localOp(LSTORE, local);
+        }
+
+        private void localOp(int opcode, int local) {
+            if (local > 0xff) {
+                code.u1(WIDE);
+                code.u1(opcode);
+                code.u2(local);
+            } else {
+                code.u1(opcode);
+                code.u1(local);
+            }
+        }
+
+        // mem, bp + offset
+        void memSlot(int offset) {
+            op(ALOAD_1);
+            op(ILOAD_3);
+            iconst(offset);
+            op(IADD);
+        }
+
+        void binary(int lhs, int rhs, int opcode) {
+            lload(lhs);
+            lload(rhs);
+            op(opcode);
+            lstore(lhs);
+        }
+
+        void binaryDouble(int lhs, int rhs, int opcode) {
+            lload(lhs);
+            toDouble();
+            lload(rhs);
+            toDouble();
+            op(opcode);
+            fromDouble();
+            lstore(lhs);
+        }
+
+        void unary(int slot, String helper) {
+            lload(slot);
+            invoke(INVOKESTATIC, RUNTIME, helper, "(J)J");
+            lstore(slot);
+        }
+
+        void toDouble() {
+            invoke(INVOKESTATIC, "java/lang/Double", "longBitsToDouble", "(J)D");
+        }
+
+        void fromDouble() {
+            invoke(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J");
+        }
+
+        void read(String method, int slot) {
+            op(ALOAD_0);
+            invoke(INVOKEVIRTUAL, RUNTIME, method, "()J");
+            lstore(slot);
+        }
+
+        void write(String method, int slot) {
+            op(ALOAD_0);
+            lload(slot);
+            invoke(INVOKEVIRTUAL, RUNTIME, method, "(J)V");
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            code.u1(opcode);
+            code.u2(cf.methodRef(owner, name, descriptor));
+        }
+
+        void jump(int opcode, int target) {
+            if (jumpCount * 2 == jumps.length)
+                jumps = Arrays.copyOf(jumps, jumps.length * 2);
+            jumps[jumpCount * 2] = code.length;
+            jumps[jumpCount * 2 + 1] = target;
+            jumpCount++;
+            code.u1(opcode);
+            code.u2(0);
+        }
+
+        void patchJumps() {
+            for (int k = 0; k < jumpCount; k++) {
+                int at = jumps[k * 2];
+                code.patch2(at + 1, start[jumps[k * 2 + 1]] - at);
+            }
+        }
+    }
+
+    // Defines the generated classes on first use.
+    private static final class Loader extends ClassLoader {
+        private final Map<String, ClassFile> classes;
+
+        Loader(Map<String, ClassFile> classes) {
+            super(JitRuntime.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            ClassFile cf = classes.get(name.replace('.', '/'));
+            if (cf == null)
+                throw new ClassNotFoundException(name);
+            byte[] bytes = cf.toByteArray();
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
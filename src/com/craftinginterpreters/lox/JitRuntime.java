@@ -0,0 +1,123 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+
+// What code translated by JitCompiler calls back into: I/O, the few
+// operations that are not a single JVM instruction, and functions that stay
+// interpreted. Public only because the generated classes live in their own
+// class loader, and so outside this package.
+public final class JitRuntime {
+    private final Interpreter interpreter;
+    private final Interpreter.Input in;
+    private final PrintStream out;
+    // By fid; null where the function is interpreted.
+    private final MethodHandle[] compiled;
+
+    JitRuntime(Interpreter interpreter, Interpreter.Input in, PrintStream out, MethodHandle[] compiled) {
+        this.interpreter = interpreter;
+        this.in = in;
+        this.out = out;
+        this.compiled = compiled;
+    }
+
+    boolean isCompiled(int fid) {
+        return fid >= 0 && fid < compiled.length && compiled[fid] != null;
+    }
+
+    int getCompiledCount() {
+        int n = 0;
+        for (MethodHandle handle : compiled) {
+            if (handle != null)
+                n++;
+        }
+        return n;
+    }
+
+    // Runs compiled function `fid` on the frame whose return slots start at
+    // `argBase`. Faults inside generated code come out as VmErrors naming
+    // the o0 instruction, read back from the line number table.
+    void invoke(int fid, long[] mem, int argBase) {
+        try {
+            compiled[fid].invokeExact(this, mem, argBase);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new Interpreter.VmError("stack overflow or bad address" + where(e));
+        } catch (ArithmeticException e) {
+            throw new Interpreter.VmError("division by zero" + where(e));
+        } catch (StackOverflowError e) {
+            throw new Interpreter.VmError("stack overflow in fid " + fid);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String where(Throwable e) {
+        for (StackTraceElement frame : e.getStackTrace()) {
+            if (frame.getClassName().startsWith(JitCompiler.PACKAGE) && frame.getMethodName().startsWith("f"))
+                return " in fid " + frame.getMethodName().substring(1) + " at " + (frame.getLineNumber() - 1);
+        }
+        return " in compiled code";
+    }
+
+    // Called by generated code for functions that could not be translated.
+    public void call(int fid, long[] mem, int argBase) {
+        interpreter.invoke(fid, argBase);
+    }
+
+    // Called first by translated functions whose image records max stack,
+    // with the same frame bound as the interpreter's.
+    public void enter(long[] mem, int end, int fid) {
+        if (end > mem.length)
+            throw new Interpreter.VmError("stack overflow in fid " + fid);
+    }
+
+    public long scani() {
+        return in.nextLong();
+    }
+
+    public long scanc() {
+        return in.nextChar();
+    }
+
+    public long scanf() {
+        return Interpreter.bits(in.nextDouble());
+    }
+
+    public void printi(long v) {
+        out.print(v);
+    }
+
+    public void printc(long v) {
+        out.print((char) v);
+    }
+
+    public void printf(long v) {
+        out.print(Interpreter.formatDouble(Interpreter.real(v)));
+    }
+
+    public void prints(long global) {
+        interpreter.printString((int) global);
+    }
+
+    public void println() {
+        out.println();
+    }
+
+    public static long not(long v) {
+        return v == 0 ? 1 : 0;
+    }
+
+    public static long setLt(long v) {
+        return v < 0 ? 1 : 0;
+    }
+
+    public static long setGt(long v) {
+        return v > 0 ? 1 : 0;
+    }
+
+    public static long cmpf(long lhs, long rhs) {
+        return Interpreter.cmpf(Interpreter.real(lhs), Interpreter.real(rhs));
+    }
+}
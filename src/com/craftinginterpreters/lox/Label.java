@@ -0,0 +1,39 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// A jump target inside one Function. Jumps emitted before the label is bound
+// are remembered here and patched exactly once by Function.bind.
+class Label {
+    private int position = -1;
+    private int[] fixups = new int[2];
+    private int fixupCount;
+
+    boolean isBound() {
+        return position >= 0;
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    void addFixup(int instruction) {
+        if (fixupCount == fixups.length)
+            fixups = Arrays.copyOf(fixups, fixupCount * 2);
+        fixups[fixupCount++] = instruction;
+    }
+
+    // Binds the label and returns the jumps that were waiting for it.
+    int bind(int position) {
+        if (isBound())
+            throw new IllegalStateException("label bound twice");
+        this.position = position;
+        int count = fixupCount;
+        fixupCount = 0;
+        return count;
+    }
+
+    int getFixup(int k) {
+        return fixups[k];
+    }
+}
@@ -1,56 +1,328 @@
 package com.craftinginterpreters.lox;
 
-import java.io.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 
 public class Lox {
-  static boolean hadError = false;
+  // Sources at least this large are mapped instead of read onto the heap.
+  private static final long MAP_THRESHOLD = 1 << 20;
 
   public static void main(String[] args) throws IOException {
-    runFile(args[0], args[1]);
+    Options options = Options.parse(args);
+    if (options.serve) {
+      serve(options);
+      return;
+    }
+    if (options.compileOnly) {
+      compileUnit(options);
+      return;
+    }
+    if (options.link) {
+      link(options);
+      return;
+    }
+    if (options.exec) {
+      execute(Paths.get(options.files.get(0)), options);
+      return;
+    }
+    if (options.verify) {
+      for (String file : options.files) {
+        MappedImage image = verify(Paths.get(file), options);
+        System.out.println(file + ": ok, " + image.getGlobalCount() + " globals, "
+            + image.getFunctionCount() + " functions, " + image.getInstructionTotal() + " instructions");
+      }
+      return;
+    }
+    CompileCache cache = options.cacheDir == null ? null
+        : new CompileCache(Paths.get(options.cacheDir), options.cacheMaxBytes);
+    if (!options.files.isEmpty())
+      runFile(options.files.get(0), options.files.get(1), options, cache);
+    if (cache != null && options.cacheStats) {
+      long[] stats = cache.stats();
+      System.err.println("cache: " + stats[0] + " hits, " + stats[1] + " misses, "
+          + stats[2] + " entries, " + stats[3] + " bytes");
+    }
   }
 
-  private static void runFile(String path1, String path2) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get(path1));
-    run(new String(bytes, Charset.defaultCharset()), path2);
+  private static void runFile(String path1, String path2, Options options, CompileCache cache) throws IOException {
+    ByteBuffer bytes = readBytes(Paths.get(path1));
+    if (cache == null) {
+      run(Source.of(bytes, Charset.defaultCharset()), path2, options);
+      return;
+    }
+    // A hit skips the scanner, parser and code generator altogether.
+    String key = cache.key(bytes, options);
+    if (cache.fetch(key, Paths.get(path2)))
+      return;
+    run(Source.of(bytes, Charset.defaultCharset()), path2, options);
+    cache.store(key, Paths.get(path2));
+  }
 
-    // Indicate an error in the exit code.
-    if (hadError) System.exit(65);
+  private static ByteBuffer readBytes(Path path) throws IOException {
+    try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = in.size();
+      if (size > Integer.MAX_VALUE)
+        throw new IOException(path + ": source larger than 2 GB");
+      ByteBuffer bytes;
+      if (size >= MAP_THRESHOLD)
+        bytes = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      else
+        bytes = ByteBuffer.wrap(Files.readAllBytes(path));
+      return bytes;
+    }
   }
 
-  private static void run(String source, String dest) throws IOException {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
-    if (hadError) System.exit(65);
+  private static void run(Source source, String dest, Options options) throws IOException {
+    if (options.streamOutput) {
+      runStreaming(source, dest, options);
+      return;
+    }
+    Program program;
+    try {
+      program = LoxCompiler.parse(source, options, new Diagnostics(System.err));
+    } catch (CompileException e) {
+      // Indicate an error in the exit code.
+      System.exit(e.getStatus());
+      return;
+    }
+    LoxCompiler.optimize(program, options, System.out);
+    program.addFlags(options.imageFlags());
 
+    try (FileChannel out = FileChannel.open(Paths.get(dest), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      new Output().gen(program, out);
+    }
+
+    Output.printIR(program);
+  }
+
+  // The functions go to a spill file next to `dest` while parsing (on the
+  // same file system, so the final copy can stay in the kernel); it is
+  // unlinked as soon as it is open.
+  private static void runStreaming(Source source, String dest, Options options) throws IOException {
+    Path out = Paths.get(dest).toAbsolutePath();
+    Path spillPath = Files.createTempFile(out.getParent(), ".spill", ".o0");
+    try (FileChannel spill = FileChannel.open(spillPath, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+      Output output = new Output();
+      output.startSpill(spill, options.imageFlags());
+      Program program;
+      try {
+        program = LoxCompiler.parse(source, options, new Diagnostics(System.err), fn -> {
+          LoxCompiler.optimize(fn, options, System.out);
+          output.spill(fn);
+        });
+      } catch (CompileException e) {
+        System.exit(e.getStatus());
+        return;
+      }
+      LoxCompiler.optimize(program.get_start(), options, System.out);
+      program.addFlags(options.imageFlags());
+
+      try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        output.finish(program, channel);
+      }
+    }
+  }
+
+  private static void compileUnit(Options options) throws IOException {
+    List<String> files = options.files;
     Program program = new Program();
-    Parser parser = new Parser(tokens);
-    parser.parse(program);
+    ObjectFile unit;
+    try {
+      for (String earlier : files.subList(2, files.size())) {
+        Path path = Paths.get(earlier);
+        if (isObject(path))
+          readObject(path).declareInto(program);
+        else
+          LoxCompiler.declareUnit(Source.of(readBytes(path), Charset.defaultCharset()), program, earlier);
+      }
+      Source source = Source.of(readBytes(Paths.get(files.get(0))), Charset.defaultCharset());
+      unit = LoxCompiler.compileUnit(source, program, options, new Diagnostics(System.err));
+    } catch (CompileException e) {
+      if (e.getMessage() != null)
+        System.err.println(e.getMessage());
+      System.exit(e.getStatus());
+      return;
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(Paths.get(files.get(1)))))) {
+      unit.write(out);
+    }
+  }
 
-    DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dest)));
-    byte[] res = new Output().gen(program);
-    out.write(res);
+  private static void link(Options options) throws IOException {
+    List<String> names = options.files.subList(1, options.files.size());
+    List<ObjectFile> units = new ArrayList<>();
+    for (String name : names)
+      units.add(readObject(Paths.get(name)));
+    Program program;
+    try {
+      program = ObjectFile.link(units, names, options.outputKey());
+    } catch (CompileException e) {
+      System.err.println(e.getMessage());
+      System.exit(e.getStatus());
+      return;
+    }
+    LoxCompiler.optimize(program.get_start(), options, System.out);
+    program.addFlags(options.imageFlags());
+    try (FileChannel out = FileChannel.open(Paths.get(options.files.get(0)), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      new Output().gen(program, out);
+    }
+  }
 
-    Output.printIR(program);
+  private static boolean isObject(Path path) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+      return in.readInt() == ObjectFile.MAGIC;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  private static ObjectFile readObject(Path path) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      return ObjectFile.read(in);
+    }
+  }
+
+  private static void serve(Options options) throws IOException {
+    CompileServer server = new CompileServer(options);
+    server.warmUp();
+    if (options.servePort == 0)
+      server.serve(System.in, new FileOutputStream(FileDescriptor.out));
+    else
+      server.listen(options.servePort);
   }
 
-  static void error(int line, String message) {
-    report(line, "", message);
+  private static void execute(Path path, Options options) throws IOException {
+    Image image = options.verify ? verify(path, options).toImage() : ImageLoader.load(path);
+    if (options.tier == Options.Tier.COMPARE) {
+      compareTiers(image, options);
+      return;
+    }
+    PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    String error = runTier(image, System.in, out, options.tier == Options.Tier.JIT, options);
+    if (error != null) {
+      System.err.println("runtime error: " + error);
+      System.exit(70);
+    }
   }
 
-  private static void report(int line, String where, String message) {
-    System.err.println("[line " + line + "] Error" + where + ": " + message);
-    hadError = true;
+  // Exits 65 (bad data) if the image is malformed.
+  private static MappedImage verify(Path path, Options options) throws IOException {
+    long begin = System.nanoTime();
+    MappedImage image = MappedImage.open(path);
+    try {
+      image.verify();
+    } catch (IllegalArgumentException e) {
+      System.err.println(path + ": invalid image: " + e.getMessage());
+      System.exit(65);
+    }
+    if (options.time)
+      System.err.println("verify: " + image.getSize() + " bytes in " + (System.nanoTime() - begin) / 1000000 + " ms");
+    return image;
+  }
+
+  // Runs the image on both tiers with the same input, passes on what the
+  // interpreter printed and fails if the translated code did anything else.
+  // The translated run is fed exactly the bytes the interpreter read.
+  private static void compareTiers(Image image, Options options) throws IOException {
+    ByteArrayOutputStream input = new ByteArrayOutputStream();
+    InputStream recording = new FilterInputStream(System.in) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0)
+          input.write(b, off, n);
+        return n;
+      }
+    };
+
+    ByteArrayOutputStream interpreted = new ByteArrayOutputStream();
+    String interpError = runTier(image, recording, new PrintStream(interpreted, false), false, options);
+    ByteArrayOutputStream translated = new ByteArrayOutputStream();
+    String jitError = runTier(image, new ByteArrayInputStream(input.toByteArray()),
+        new PrintStream(translated, false), true, options);
+
+    interpreted.writeTo(System.out);
+    System.out.flush();
+    boolean sameOutput = Arrays.equals(interpreted.toByteArray(), translated.toByteArray());
+    if (!sameOutput || !Objects.equals(interpError, jitError)) {
+      System.err.println("tiers differ: output " + (sameOutput ? "same" : "differs")
+          + ", interpreter error: " + interpError + ", jit error: " + jitError);
+      System.exit(1);
+    }
+    if (interpError != null) {
+      System.err.println("runtime error: " + interpError);
+      System.exit(70);
+    }
+  }
+
+  // Runs the image on one tier; returns its runtime error, or null.
+  private static String runTier(Image image, InputStream in, PrintStream out, boolean jit, Options options) {
+    Interpreter interpreter = new Interpreter(image, in, out);
+    long begin = System.nanoTime();
+    int translated = jit ? interpreter.compile() : 0;
+    String error = null;
+    try {
+      if (jit)
+        runOnLargeStack(interpreter::run);
+      else
+        interpreter.run();
+    } catch (Interpreter.VmError e) {
+      error = e.getMessage();
+    }
+    if (options.time) {
+      long elapsed = System.nanoTime() - begin;
+      if (jit)
+        System.err.print("jit: " + translated + " functions translated, ");
+      System.err.println(interpreter.getDispatched() + " instructions " + (jit ? "interpreted " : "")
+          + "in " + elapsed / 1000000 + " ms, " + image.getDecodedCount() + " functions decoded");
+    }
+    return error;
   }
 
-  static void error(Token token, String message) {
-    if (token.type == TokenType.EOF) {
-      report(token.line, " at end", message);
-    } else {
-      report(token.line, " at '" + token.lexeme + "'", message);
+  // Translated functions recurse on the Java stack, so give it room for as
+  // many frames as the VM's own stack holds.
+  private static void runOnLargeStack(Runnable task) {
+    RuntimeException[] failure = new RuntimeException[1];
+    Thread thread = new Thread(null, () -> {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        failure[0] = e;
+      }
+    }, "o0", 1L << 30);
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+    if (failure[0] != null)
+      throw failure[0];
   }
-}
\ No newline at end of file
+}
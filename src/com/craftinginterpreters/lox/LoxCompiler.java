@@ -0,0 +1,201 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+// In-process entry point. A LoxCompiler holds nothing but its options, so one
+// instance can be shared by any number of threads; everything a compilation
+// touches is created by that compilation.
+public final class LoxCompiler {
+    // Bumped whenever the same source and options may compile to different
+    // bytes; part of every CompileCache key.
+    static final int CODEGEN_REVISION = 17;
+
+    private final Options options;
+    // Bodies from earlier compilations; null compiles everything afresh.
+    private final BodyCache bodies;
+
+    public LoxCompiler() {
+        this(new Options());
+    }
+
+    LoxCompiler(Options options) {
+        this(options, null);
+    }
+
+    LoxCompiler(Options options, BodyCache bodies) {
+        this.options = options;
+        this.bodies = bodies;
+    }
+
+    public CompilationResult compile(CharSequence source) {
+        return compile(Source.of(source.toString()));
+    }
+
+    CompilationResult compile(Source source) {
+        Diagnostics diagnostics = new Diagnostics();
+        try {
+            Program program;
+            if (bodies != null) {
+                program = parseIncremental(source, diagnostics);
+            } else {
+                program = parse(source, options, diagnostics);
+                optimize(program, options, null);
+            }
+            program.addFlags(options.imageFlags());
+            return new CompilationResult(CompilationResult.OK, new Output().gen(program),
+                    diagnostics.getErrors());
+        } catch (CompileException e) {
+            return new CompilationResult(e.getStatus(), null, diagnostics.getErrors());
+        } catch (Parser.ParseError e) {
+            return new CompilationResult(CompilationResult.PARSE_ERROR, null, diagnostics.getErrors());
+        }
+    }
+
+    // The front end, shared with the command line. Errors are reported to
+    // `diagnostics`; scan errors end it with a CompileException, parse errors
+    // with a ParseError.
+    static Program parse(Source source, Options options, Diagnostics diagnostics) {
+        return parse(source, options, diagnostics, null);
+    }
+
+    // As above, handing each function to `finished` as soon as its body is
+    // compiled. That needs the sequential parser, so --jobs is ignored.
+    static Program parse(Source source, Options options, Diagnostics diagnostics, Consumer<Function> finished) {
+        Program program = new Program();
+        if (options.stream) {
+            TokenBuffer tokens = new TokenBuffer(source);
+            if (options.threadedLexer) {
+                try (ThreadedTokenSource lexer = new ThreadedTokenSource(source, tokens, diagnostics)) {
+                    Parser parser = new Parser(tokens, lexer, diagnostics);
+                    parser.setFinished(finished);
+                    parser.parse(program);
+                }
+            } else {
+                Parser parser = new Parser(tokens, new Scanner(source, tokens, diagnostics), diagnostics);
+                parser.setFinished(finished);
+                parser.parse(program);
+            }
+        } else {
+            TokenBuffer tokens = new Scanner(source, diagnostics).scanTokens();
+            checkScan(diagnostics);
+
+            if (options.jobs == 1 || finished != null) {
+                Parser parser = new Parser(tokens, diagnostics);
+                parser.setFinished(finished);
+                parser.parse(program);
+            } else if (!parseParallel(tokens, program, options.jobs)) {
+                // start over; the sequential parser reports whatever stopped it
+                program = new Program();
+                new Parser(tokens, diagnostics).parse(program);
+            }
+        }
+        // Streaming interleaves lexing with parsing, so scan errors land here.
+        checkScan(diagnostics);
+        return program;
+    }
+
+    // Front end for `-c`: compiles `source` as one unit on top of `program`,
+    // which already holds the declarations of the units before it.
+    static ObjectFile compileUnit(Source source, Program program, Options options, Diagnostics diagnostics) {
+        TokenBuffer tokens = new Scanner(source, diagnostics).scanTokens();
+        checkScan(diagnostics);
+        int globalCount = program.getGlobals().getTable().size();
+        List<Function> functions = program.getFunctions().getFunctions();
+        int functionCount = functions.size();
+        int startCount = program.get_start().getInstructionCount();
+
+        new Parser(tokens, diagnostics).parseUnit(program);
+        // top-level code is only optimized once linked, as in one file
+        for (Function fn : functions.subList(functionCount, functions.size()))
+            optimize(fn, options, null);
+        return ObjectFile.of(program, globalCount, functionCount, startCount, options.outputKey());
+    }
+
+    // Declares what the unit in `source` defines in `program`, without
+    // compiling its function bodies, for compiling a later unit against it.
+    static void declareUnit(Source source, Program program, String name) {
+        Diagnostics diagnostics = new Diagnostics();
+        TokenBuffer tokens = new Scanner(source, diagnostics).scanTokens();
+        if (diagnostics.hasErrors() || !Parser.declareUnit(tokens, program))
+            throw new CompileException(CompilationResult.PARSE_ERROR, name + " does not compile");
+    }
+
+    // parse() and optimize() for a compiler with a BodyCache. The top level
+    // is always walked, which fixes every fid and global slot; then each body
+    // is copied from the cache if it can be, or else compiled, optimized and
+    // added to it. Any error reruns the sequential parser to report it.
+    private Program parseIncremental(Source source, Diagnostics diagnostics) {
+        TokenBuffer tokens = new Scanner(source, diagnostics).scanTokens();
+        checkScan(diagnostics);
+
+        Program program = new Program();
+        Parser.Outline outline = Parser.outline(tokens, program, false);
+        boolean ok = outline != null;
+        for (int i = 0; ok && i < outline.bodies.size(); i++) {
+            Parser.Body body = outline.bodies.get(i);
+            Function fn = body.function;
+            String key = BodyCache.key(tokens, body.header, body.end);
+            if (bodies.reuse(key, program, fn, body.globalLimit))
+                continue;
+            Relocations relocations = new Relocations();
+            try {
+                Parser.compileBody(tokens, program.getFunctions(), outline.pooled, body, relocations);
+            } catch (RuntimeException e) {
+                ok = false;
+                break;
+            }
+            optimize(fn, options, null);
+            bodies.put(key, fn, relocations);
+        }
+        if (ok) {
+            optimize(program.get_start(), options, null);
+            return program;
+        }
+
+        program = new Program();
+        new Parser(tokens, diagnostics).parse(program);
+        optimize(program, options, null);
+        return program;
+    }
+
+    // Runs the -O passes that `options` asks for, reporting per function to
+    // `report` if it is not null.
+    static void optimize(Program program, Options options, PrintStream report) {
+        if (options.peephole == null && !options.packLocals)
+            return;
+        optimize(program.get_start(), options, report);
+        for (Function fn : program.getFunctions().getFunctions())
+            optimize(fn, options, report);
+    }
+
+    static void optimize(Function fn, Options options, PrintStream report) {
+        if (options.peephole != null) {
+            int removed = new Peephole(options.peephole).run(fn);
+            if (report != null)
+                report.println("peephole " + fn.getName() + ": " + removed + " removed");
+        }
+        if (options.packLocals) {
+            int before = fn.getLocaSlots();
+            int after = new SlotAllocator().run(fn);
+            if (report != null)
+                report.println("locals " + fn.getName() + ": " + before + " -> " + after + " slots");
+        }
+    }
+
+    private static void checkScan(Diagnostics diagnostics) {
+        if (diagnostics.hasErrors())
+            throw new CompileException(CompilationResult.SCAN_ERROR, "scan failed");
+    }
+
+    private static boolean parseParallel(TokenBuffer tokens, Program program, int jobs) {
+        ForkJoinPool pool = new ForkJoinPool(jobs);
+        try {
+            return Parser.parseParallel(tokens, program, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static com.craftinginterpreters.lox.InstructionType.*;
+
+// An o0 file verified where it lies. The file is mapped in 1 GB segments,
+// each overlapping the next by a few bytes so that any single value can be
+// read from the segment it starts in; nothing of it is copied to the heap.
+// What is kept is per global and per function, plus one offset every
+// CHECKPOINT instructions for random access into the variable-length code.
+//
+// verify() makes one linear pass and checks, with the byte offset of the
+// first problem:
+//   - magic, layout revision and known flags in the version word;
+//   - that the global and function tables lie inside the file, with nothing
+//     after them but, for FLAG_INDEX, an index matching the functions;
+//   - fids: 0 <= fid < function count and no duplicates (Output always
+//     writes them dense);
+//   - every opcode is an InstructionType;
+//   - extended opcodes appear only under FLAG_SUPER;
+//   - branch targets lie within the body (or one past it, where the loader's
+//     implicit ret is), popn/stackalloc counts are not negative;
+//   - loca, arga and globa indices, and those of the fused loads, stores
+//     and incl, are below the declared slot counts;
+//   - every call names a function in the image;
+//   - under FLAG_MAX_STACK, that StackDepth accepts each function and finds
+//     no more than its header claims. This decodes each function once more,
+//     after the pass, since calls may name functions further on.
+// Nothing else may be used before verify() has returned.
+class MappedImage implements Image.Decoder {
+    private static final int SEGMENT_BITS = 30;
+    private static final int OVERLAP = 16;
+    private static final int CHECKPOINT_BITS = 6;
+    private static final int KNOWN_FLAGS = Program.FLAG_INDEX | Program.FLAG_MAX_STACK | Program.FLAG_SUPER;
+
+    private final long size;
+    private final int segmentBits;
+    private final MappedByteBuffer[] segments;
+
+    private int version;
+    private long[] globalOffsets;
+    private int[] globalSizes;
+    private boolean[] globalConst;
+
+    // By position in the file; `byFid` maps fids to positions.
+    private int functionCount;
+    private int[] fids;
+    private int[] returnSlots;
+    private int[] paramSlots;
+    private int[] locaSlots;
+    // -1 without FLAG_MAX_STACK.
+    private int[] maxStack;
+    private int[] instructionCounts;
+    private long[] headerOffsets;
+    // Byte offset of every CHECKPOINT-th instruction of each function.
+    private long[][] checkpoints;
+    private int[] byFid;
+    private long instructionTotal;
+
+    static MappedImage open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new MappedImage(channel, SEGMENT_BITS);
+        }
+    }
+
+    // Small segments are only useful for exercising the boundaries.
+    MappedImage(FileChannel channel, int segmentBits) throws IOException {
+        this.size = channel.size();
+        this.segmentBits = segmentBits;
+        long segment = 1L << segmentBits;
+        int count = (int) Math.max(1, (size + segment - 1) >>> segmentBits);
+        segments = new MappedByteBuffer[count];
+        for (int k = 0; k < count; k++) {
+            long start = (long) k << segmentBits;
+            long length = Math.min(size - start, segment + OVERLAP);
+            segments[k] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(length, 0));
+        }
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    int getGlobalCount() {
+        return globalOffsets.length;
+    }
+
+    boolean isConst(int global) {
+        return globalConst[global];
+    }
+
+    int getGlobalSize(int global) {
+        return globalSizes[global];
+    }
+
+    // Offset of the global's value in the file.
+    long getGlobalOffset(int global) {
+        return globalOffsets[global];
+    }
+
+    byte[] getGlobal(int global) {
+        byte[] value = new byte[globalSizes[global]];
+        long at = globalOffsets[global];
+        for (int i = 0; i < value.length; i++)
+            value[i] = (byte) u8(at + i);
+        return value;
+    }
+
+    int getFunctionCount() {
+        return functionCount;
+    }
+
+    long getInstructionTotal() {
+        return instructionTotal;
+    }
+
+    // Position of function `fid` in the file, or -1.
+    int indexOf(int fid) {
+        return fid >= 0 && fid < byFid.length ? byFid[fid] : -1;
+    }
+
+    int getFid(int function) {
+        return fids[function];
+    }
+
+    int getReturnSlots(int function) {
+        return returnSlots[function];
+    }
+
+    int getParamSlots(int function) {
+        return paramSlots[function];
+    }
+
+    int getLocaSlots(int function) {
+        return locaSlots[function];
+    }
+
+    int getMaxStack(int function) {
+        return maxStack[function];
+    }
+
+    int getInstructionCount(int function) {
+        return instructionCounts[function];
+    }
+
+    // Byte offset of instruction k of a function: a checkpoint and at most
+    // CHECKPOINT - 1 steps forward from it.
+    long getInstructionOffset(int function, int k) {
+        if (k < 0 || k > instructionCounts[function])
+            throw new IndexOutOfBoundsException("instruction " + k);
+        long at = checkpoints[function][k >>> CHECKPOINT_BITS];
+        for (int i = k & ~((1 << CHECKPOINT_BITS) - 1); i < k; i++)
+            at = next(at);
+        return at;
+    }
+
+    int opAt(long at) {
+        return u8(at);
+    }
+
+    // The operand as stored: u64 for push, s32 for the others that have one,
+    // 0 for none. br* operands are relative to the next instruction.
+    long operandAt(long at) {
+        switch (InstructionType.fromNum(u8(at)).getOperandSize()) {
+            case 8:
+                return u64(at + 1);
+            case 4:
+                return u32(at + 1);
+            default:
+                return 0;
+        }
+    }
+
+    // Offset of the instruction after the one at `at`.
+    long next(long at) {
+        return at + 1 + InstructionType.fromNum(u8(at)).getOperandSize();
+    }
+
+    // An Image over this file that decodes each function on first use.
+    Image toImage() {
+        byte[][] globals = new byte[getGlobalCount()][];
+        for (int i = 0; i < globals.length; i++)
+            globals[i] = getGlobal(i);
+        return new Image(version, globals, new Image.Code[functionCount], fids[0], this);
+    }
+
+    @Override
+    public Image.Code decode(int fid) {
+        int function = indexOf(fid);
+        if (function < 0)
+            return null;
+        int count = instructionCounts[function];
+        byte[] ops = new byte[count + 1];
+        long[] args = new long[count + 1];
+        ops[count] = (byte) ret.getNum();
+        long at = checkpoints[function][0];
+        for (int i = 0; i < count; i++) {
+            InstructionType type = InstructionType.fromNum(u8(at));
+            ops[i] = (byte) type.getNum();
+            args[i] = operandAt(at);
+            if (type.isBranch())
+                args[i] += i + 1;
+            at += 1 + type.getOperandSize();
+        }
+        return new Image.Code(fid, returnSlots[function], paramSlots[function], locaSlots[function],
+                maxStack[function], ops, args);
+    }
+
+    void verify() {
+        long at = 0;
+        need(at, 12, "header");
+        int magic = u32(at);
+        if (magic != Program.MAGIC)
+            throw bad(at, "bad magic " + Integer.toHexString(magic));
+        version = u32(at + 4);
+        if ((version & 0xff) != 1 || (version & ~0xff & ~KNOWN_FLAGS) != 0)
+            throw bad(at + 4, "unsupported version 0x" + Integer.toHexString(version));
+        at += 8;
+
+        int globalCount = u32(at);
+        at += 4;
+        if (globalCount < 0 || globalCount > (size - at) / 5)
+            throw bad(at - 4, globalCount + " globals cannot fit");
+        globalOffsets = new long[globalCount];
+        globalSizes = new int[globalCount];
+        globalConst = new boolean[globalCount];
+        for (int i = 0; i < globalCount; i++) {
+            need(at, 5, "global " + i);
+            int isConst = u8(at);
+            if (isConst > 1)
+                throw bad(at, "global " + i + ": const flag " + isConst);
+            int length = u32(at + 1);
+            at += 5;
+            if (length < 0)
+                throw bad(at - 4, "global " + i + ": negative size");
+            need(at, length, "global " + i);
+            globalConst[i] = isConst == 1;
+            globalSizes[i] = length;
+            globalOffsets[i] = at;
+            at += length;
+        }
+
+        need(at, 4, "function count");
+        functionCount = u32(at);
+        at += 4;
+        int headerSize = ImageLoader.headerSize(version);
+        if (functionCount <= 0 || functionCount > (size - at) / headerSize)
+            throw bad(at - 4, functionCount + " functions cannot fit");
+        fids = new int[functionCount];
+        returnSlots = new int[functionCount];
+        paramSlots = new int[functionCount];
+        locaSlots = new int[functionCount];
+        maxStack = new int[functionCount];
+        instructionCounts = new int[functionCount];
+        headerOffsets = new long[functionCount];
+        checkpoints = new long[functionCount][];
+        byFid = new int[functionCount];
+        Arrays.fill(byFid, -1);
+        BitSet called = new BitSet(functionCount);
+        for (int f = 0; f < functionCount; f++)
+            at = verifyFunction(f, at, globalCount, called);
+        for (int fid = called.nextSetBit(0); fid >= 0; fid = called.nextSetBit(fid + 1)) {
+            if (byFid[fid] < 0)
+                throw bad(-1, "call to undefined function " + fid);
+        }
+        if ((version & Program.FLAG_MAX_STACK) != 0)
+            verifyMaxStack();
+
+        if ((version & Program.FLAG_INDEX) != 0)
+            at = verifyIndex(at);
+        if (at != size)
+            throw bad(at, (size - at) + " bytes after the last function");
+    }
+
+    private long verifyFunction(int f, long at, int globalCount, BitSet called) {
+        int headerSize = ImageLoader.headerSize(version);
+        need(at, headerSize, "function header");
+        headerOffsets[f] = at;
+        int fid = u32(at);
+        if (fid < 0 || fid >= functionCount)
+            throw bad(at, "fid " + fid + " out of range for " + functionCount + " functions");
+        if (byFid[fid] >= 0)
+            throw bad(at, "duplicate fid " + fid);
+        byFid[fid] = f;
+        fids[f] = fid;
+        int returns = returnSlots[f] = u32(at + 4);
+        int params = paramSlots[f] = u32(at + 8);
+        int locals = locaSlots[f] = u32(at + 12);
+        int stack = maxStack[f] = headerSize == 24 ? u32(at + 16) : -1;
+        int count = instructionCounts[f] = u32(at + headerSize - 4);
+        if (returns < 0 || params < 0 || locals < 0 || headerSize == 24 && stack < 0
+                || count < 0 || count > size - at - headerSize)
+            throw bad(at, "fid " + fid + ": bad header");
+        at += headerSize;
+        boolean extended = (version & Program.FLAG_SUPER) != 0;
+
+        long[] marks = new long[(count >>> CHECKPOINT_BITS) + 1];
+        for (int i = 0; i < count; i++) {
+            if ((i & ((1 << CHECKPOINT_BITS) - 1)) == 0)
+                marks[i >>> CHECKPOINT_BITS] = at;
+            need(at, 1, "fid " + fid);
+            int op = u8(at);
+            InstructionType type = InstructionType.fromNum(op);
+            if (type == null)
+                throw bad(at, "fid " + fid + " at " + i + ": bad opcode 0x" + Integer.toHexString(op));
+            need(at + 1, type.getOperandSize(), "fid " + fid + " at " + i);
+            if (type.isExtended() && !extended)
+                throw bad(at, "fid " + fid + " at " + i + ": " + type + " needs FLAG_SUPER");
+            long arg = type.getOperandSize() == 4 ? u32(at + 1) : 0;
+            if (type.isBranch() && (i + 1 + arg < 0 || i + 1 + arg > count))
+                throw bad(at, "fid " + fid + " at " + i + ": branch leaves the function");
+            switch (type) {
+                case loca:
+                case loadl:
+                case storel:
+                    checkIndex(at, fid, i, arg, locals, "local");
+                    break;
+                case incl:
+                    checkIndex(at, fid, i, u64(at + 1) >> 32, locals, "local");
+                    break;
+                case arga:
+                case loada:
+                case storea:
+                    checkIndex(at, fid, i, arg, (long) returns + params, "argument");
+                    break;
+                case globa:
+                case loadg:
+                case storeg:
+                    checkIndex(at, fid, i, arg, globalCount, "global");
+                    break;
+                case popn:
+                case stackalloc:
+                    if (arg < 0)
+                        throw bad(at, "fid " + fid + " at " + i + ": negative count");
+                    break;
+                case call:
+                    if (arg < 0 || arg >= functionCount)
+                        throw bad(at, "fid " + fid + " at " + i + ": call to undefined function " + arg);
+                    called.set((int) arg);
+                    break;
+                default:
+                    break;
+            }
+            at += 1 + type.getOperandSize();
+        }
+        if ((count & ((1 << CHECKPOINT_BITS) - 1)) == 0)
+            marks[count >>> CHECKPOINT_BITS] = at;
+        checkpoints[f] = marks;
+        instructionTotal += count;
+        return at;
+    }
+
+    private void verifyMaxStack() {
+        StackDepth.Signatures signatures = new StackDepth.Signatures() {
+            @Override
+            public int returnSlots(int fid) {
+                return indexOf(fid) < 0 ? -1 : returnSlots[indexOf(fid)];
+            }
+
+            @Override
+            public int paramSlots(int fid) {
+                return indexOf(fid) < 0 ? -1 : paramSlots[indexOf(fid)];
+            }
+        };
+        for (int f = 0; f < functionCount; f++) {
+            StackDepth stack = StackDepth.of(decode(fids[f]), signatures);
+            if (!stack.isValid())
+                throw bad(headerOffsets[f], "fid " + fids[f] + " " + stack.getError());
+            if (stack.getMax() > maxStack[f])
+                throw bad(headerOffsets[f] + 16, "fid " + fids[f] + ": max stack " + maxStack[f]
+                        + ", but reaches " + stack.getMax());
+        }
+    }
+
+    private void checkIndex(long at, int fid, int i, long index, long limit, String what) {
+        if (index < 0 || index >= limit)
+            throw bad(at, "fid " + fid + " at " + i + ": " + what + " " + index + " of " + limit);
+    }
+
+    // Functions end at `at`; the index must follow and describe them.
+    private long verifyIndex(long at) {
+        need(at, 4 + 16L * functionCount + 8, "index");
+        if (u32(at) != functionCount)
+            throw bad(at, "index has " + u32(at) + " entries for " + functionCount + " functions");
+        if (u64(size - 8) != at)
+            throw bad(size - 8, "index offset " + u64(size - 8) + ", index is at " + at);
+        long entry = at + 4;
+        for (int f = 0; f < functionCount; f++, entry += 16) {
+            long end = f + 1 < functionCount ? headerOffsets[f + 1] : at;
+            if (u32(entry) != fids[f] || u64(entry + 4) != headerOffsets[f]
+                    || u32(entry + 12) != end - headerOffsets[f])
+                throw bad(entry, "index entry " + f + " does not match fid " + fids[f]);
+        }
+        return entry + 8;
+    }
+
+    private void need(long at, long bytes, String what) {
+        if (bytes > size - at)
+            throw bad(at, "truncated " + what);
+    }
+
+    private static IllegalArgumentException bad(long at, String message) {
+        return new IllegalArgumentException(at < 0 ? message : "at byte " + at + ": " + message);
+    }
+
+    private ByteBuffer segment(long at) {
+        return segments[(int) (at >>> segmentBits)];
+    }
+
+    private int offset(long at) {
+        return (int) (at & ((1L << segmentBits) - 1));
+    }
+
+    private int u8(long at) {
+        return segment(at).get(offset(at)) & 0xff;
+    }
+
+    private int u32(long at) {
+        return segment(at).getInt(offset(at));
+    }
+
+    private long u64(long at) {
+        return segment(at).getLong(offset(at));
+    }
+}
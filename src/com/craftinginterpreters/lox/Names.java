@@ -0,0 +1,60 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// Interns symbol names to dense integer ids so scopes can key on ints.
+// find() never inserts, so lookups are safe once interning has stopped.
+class Names {
+    private String[] keys = new String[64];
+    private int[] ids = new int[64];
+    private int count;
+
+    int intern(String name) {
+        int slot = slot(name);
+        if (keys[slot] != null)
+            return ids[slot];
+        if ((count + 1) * 2 > keys.length) {
+            grow();
+            slot = slot(name);
+        }
+        keys[slot] = name;
+        ids[slot] = count;
+        return count++;
+    }
+
+    int find(String name) {
+        int slot = slot(name);
+        return keys[slot] == null ? -1 : ids[slot];
+    }
+
+    int size() {
+        return count;
+    }
+
+    private int slot(String name) {
+        int mask = keys.length - 1;
+        int i = mix(name.hashCode()) & mask;
+        while (keys[i] != null && !keys[i].equals(name))
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        int[] oldIds = ids;
+        keys = new String[oldKeys.length * 2];
+        ids = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+
+    static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,355 @@
+package com.craftinginterpreters.lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.craftinginterpreters.lox.InstructionType.*;
+
+// One separately compiled unit (`Lox -c`). Its code is final except for
+// operands naming a global slot or a fid, which stay symbolic until link()
+// places the units, in order, into one Program. The result is the image
+// the units would give compiled as one file.
+//
+// A unit is compiled on top of the declarations of the units before it
+// (see Lox) and lists what it used from them, with signatures, so link()
+// can tell when one of those changed without the unit being recompiled.
+//
+//   u32 magic, u32 version, UTF options key
+//   u32 globals, in slot order: u8 0, UTF name, UTF type, u8 const,
+//       u8 folded value (0 none, 1 int, 2 double) and u64 bits
+//     | u8 1, u32 length, UTF-8 string
+//   u32 imports: UTF "g name" or "f name", UTF signature
+//   u32 functions: UTF name, UTF return type, u32 params, UTF type each,
+//       u32 return slots, u32 param slots, u32 loca slots, code
+//   code of the unit's top-level statements
+//
+// where code is u32 instructions, each u8 opcode, u64 i64, u64 f64 bits,
+// then u32 relocations, each u32 index, u8 Relocations kind, UTF symbol.
+class ObjectFile {
+    static final int MAGIC = 0x72303b6f;
+    static final int VERSION = 1;
+
+    private static final InstructionType[] TYPES = InstructionType.values();
+
+    private final String optionsKey;
+    // string globals have an empty name and their value set
+    private final List<Variable> globals;
+    private final Map<String, String> imports;
+    private final List<Function> functions;
+    private final Function start;
+
+    private ObjectFile(String optionsKey, List<Variable> globals, Map<String, String> imports,
+                       List<Function> functions, Function start) {
+        this.optionsKey = optionsKey;
+        this.globals = globals;
+        this.imports = imports;
+        this.functions = functions;
+        this.start = start;
+    }
+
+    // What `program` gained after it held `globalCount` globals, `functionCount`
+    // functions and `startCount` top-level instructions; the unit was parsed
+    // with Parser.parseUnit and its functions optimized.
+    static ObjectFile of(Program program, int globalCount, int functionCount, int startCount,
+                         String optionsKey) {
+        List<Variable> table = program.getGlobals().getTable();
+        List<Variable> globals = new ArrayList<>(table.subList(globalCount, table.size()));
+        List<Function> all = program.getFunctions().getFunctions();
+        List<Function> functions = new ArrayList<>(all.subList(functionCount, all.size()));
+
+        Function start = new Function();
+        start.setName("_start");
+        List<Instruction> code = program.get_start().getInstructionList();
+        start.getInstructionList().addAll(code.subList(startCount, code.size()));
+        start.setRelocations(program.get_start().getRelocations());
+
+        // everything used but not defined here came from an earlier unit
+        Set<String> own = new HashSet<>();
+        for (Variable var : globals)
+            own.add("g " + var.getName());
+        for (Function fn : functions)
+            own.add("f " + fn.getName());
+        Map<String, String> imports = new LinkedHashMap<>();
+        for (Function fn : functions)
+            addImports(fn.getRelocations(), own, imports);
+        addImports(start.getRelocations(), own, imports);
+        return new ObjectFile(optionsKey, globals, imports, functions, start);
+    }
+
+    private static void addImports(Relocations relocations, Set<String> own, Map<String, String> imports) {
+        for (Map.Entry<String, String> e : relocations.dependencies.entrySet()) {
+            if (!own.contains(e.getKey()))
+                imports.putIfAbsent(e.getKey(), e.getValue());
+        }
+    }
+
+    String getOptionsKey() {
+        return optionsKey;
+    }
+
+    // Declares this unit's globals and functions in `program`, so that a
+    // later unit can be compiled against them. Slots and fids are only
+    // placeholders; the later unit's code refers to them by name.
+    void declareInto(Program program) {
+        SymbolTable table = program.getGlobals();
+        for (Variable var : globals) {
+            if (var.getType() == Type.STRING)
+                continue;
+            Variable copy = new Variable(var.getName(), Kind.GLOBAL, var.getType(),
+                    program.allocateGlobal(), var.isConst());
+            copy.setConstValue(var.getConstValue());
+            table.addVar(copy);
+        }
+        for (Function fn : functions) {
+            Function copy = new Function();
+            copy.setName(fn.getName());
+            copy.setReturnType(fn.getReturnType());
+            for (Type type : fn.getParamTypes())
+                copy.addParamType(type);
+            copy.setFid(program.getFunctions().getNextFid());
+            program.getFunctions().addFunction(copy);
+        }
+    }
+
+    // Places `units`, in order, into a new Program; `optionsKey` is what
+    // every unit must have been compiled with.
+    static Program link(List<ObjectFile> units, List<String> names, String optionsKey) {
+        Program program = new Program();
+        SymbolTable table = program.getGlobals();
+        FunctionTable functionTable = program.getFunctions();
+        for (int u = 0; u < units.size(); u++) {
+            ObjectFile unit = units.get(u);
+            String name = names.get(u);
+            if (!unit.optionsKey.equals(optionsKey))
+                throw new CompileException(CompilationResult.PARSE_ERROR,
+                        name + ": compiled with different options (" + unit.optionsKey + ")");
+            for (Map.Entry<String, String> e : unit.imports.entrySet()) {
+                if (!e.getValue().equals(signature(program, e.getKey())))
+                    throw new CompileException(CompilationResult.PARSE_ERROR, name + ": '"
+                            + e.getKey().substring(2) + "' is not declared as it was when compiled");
+            }
+
+            try {
+                for (Variable var : unit.globals) {
+                    if (var.getType() == Type.STRING) {
+                        if (table.findString(var.getValue()) != null)
+                            continue;
+                        var.setAddr(program.allocateGlobal());
+                        table.addString(var);
+                    } else {
+                        var.setAddr(program.allocateGlobal());
+                        table.addVar(var);
+                    }
+                }
+                for (Function fn : unit.functions) {
+                    fn.setFid(functionTable.getNextFid());
+                    fn.setFname(table.findString(fn.getName()).getAddr());
+                    functionTable.addFunction(fn);
+                    relocate(program, fn);
+                }
+            } catch (CompileException e) {
+                throw new CompileException(e.getStatus(), name + ": " + e.getMessage());
+            }
+            relocate(program, unit.start);
+            program.get_start().getInstructionList().addAll(unit.start.getInstructionList());
+        }
+
+        Function main = program.getFunction("main");
+        if (main == null)
+            throw new CompileException(CompilationResult.PARSE_ERROR, "no main function");
+        program.get_start().addInstruction(new Instruction(call, main.getFid()));
+        return program;
+    }
+
+    private static String signature(Program program, String dependency) {
+        String name = dependency.substring(2);
+        if (dependency.charAt(0) == 'g') {
+            Variable var = program.getGlobals().getVar(name);
+            return var != null ? Relocations.signature(var) : null;
+        }
+        Function fn = program.getFunction(name);
+        return fn != null ? Relocations.signature(fn) : null;
+    }
+
+    private static void relocate(Program program, Function fn) {
+        Relocations relocations = fn.getRelocations();
+        for (int k = 0; k < relocations.sites.size(); k++) {
+            String symbol = relocations.symbols.get(k);
+            long operand;
+            switch (relocations.kind(k)) {
+                case Relocations.GLOBAL:
+                    operand = program.getGlobals().getVar(symbol).getAddr();
+                    break;
+                case Relocations.STRING:
+                    operand = program.getGlobals().findString(symbol).getAddr();
+                    break;
+                default:
+                    operand = program.getFunction(symbol).getFid();
+            }
+            relocations.sites.get(k).i64 = operand;
+        }
+        fn.setRelocations(null);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(optionsKey);
+
+        out.writeInt(globals.size());
+        for (Variable var : globals) {
+            if (var.getType() == Type.STRING) {
+                out.writeByte(1);
+                byte[] value = var.getValue().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(value.length);
+                out.write(value);
+                continue;
+            }
+            out.writeByte(0);
+            out.writeUTF(var.getName());
+            out.writeUTF(var.getType().name());
+            out.writeByte(var.isConst() ? 1 : 0);
+            Object value = var.getConstValue();
+            if (value instanceof Long) {
+                out.writeByte(1);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(2);
+                out.writeLong(Double.doubleToRawLongBits((Double) value));
+            } else {
+                out.writeByte(0);
+                out.writeLong(0);
+            }
+        }
+
+        out.writeInt(imports.size());
+        for (Map.Entry<String, String> e : imports.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeUTF(e.getValue());
+        }
+
+        out.writeInt(functions.size());
+        for (Function fn : functions) {
+            out.writeUTF(fn.getName());
+            out.writeUTF(fn.getReturnType().name());
+            out.writeInt(fn.getParamTypes().size());
+            for (Type type : fn.getParamTypes())
+                out.writeUTF(type.name());
+            out.writeInt(fn.getReturnSlots());
+            out.writeInt(fn.getParamSlots());
+            out.writeInt(fn.getLocaSlots());
+            writeCode(out, fn);
+        }
+        writeCode(out, start);
+    }
+
+    private static void writeCode(DataOutputStream out, Function fn) throws IOException {
+        List<Instruction> code = fn.getInstructionList();
+        out.writeInt(code.size());
+        for (Instruction ins : code) {
+            out.writeByte(ins.getType().ordinal());
+            out.writeLong(ins.i64);
+            out.writeLong(Double.doubleToRawLongBits(ins.f64));
+        }
+        // sites an optimization deleted are dropped
+        Relocations relocations = fn.getRelocations();
+        int[] at = relocations.sitesIn(code);
+        int kept = 0;
+        for (int i : at) {
+            if (i >= 0)
+                kept++;
+        }
+        out.writeInt(kept);
+        for (int k = 0; k < at.length; k++) {
+            if (at[k] < 0)
+                continue;
+            out.writeInt(at[k]);
+            out.writeByte(relocations.kind(k));
+            out.writeUTF(relocations.symbols.get(k));
+        }
+    }
+
+    static ObjectFile read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("not an object file");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("unsupported object version " + version);
+        String optionsKey = in.readUTF();
+
+        int globalCount = in.readInt();
+        List<Variable> globals = new ArrayList<>(globalCount);
+        for (int i = 0; i < globalCount; i++) {
+            if (in.readByte() == 1) {
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                String string = new String(value, StandardCharsets.UTF_8);
+                Variable var = new Variable("", Kind.GLOBAL, Type.STRING, string.length(), 0, true);
+                var.setValue(string);
+                globals.add(var);
+                continue;
+            }
+            String name = in.readUTF();
+            Type type = Type.valueOf(in.readUTF());
+            boolean isConst = in.readByte() != 0;
+            int tag = in.readByte();
+            long bits = in.readLong();
+            Variable var = new Variable(name, Kind.GLOBAL, type, 0, isConst);
+            if (tag == 1)
+                var.setConstValue(bits);
+            else if (tag == 2)
+                var.setConstValue(Double.longBitsToDouble(bits));
+            globals.add(var);
+        }
+
+        int importCount = in.readInt();
+        Map<String, String> imports = new LinkedHashMap<>();
+        for (int i = 0; i < importCount; i++)
+            imports.put(in.readUTF(), in.readUTF());
+
+        int functionCount = in.readInt();
+        List<Function> functions = new ArrayList<>(functionCount);
+        for (int i = 0; i < functionCount; i++) {
+            Function fn = new Function();
+            fn.setName(in.readUTF());
+            fn.setReturnType(Type.valueOf(in.readUTF()));
+            int params = in.readInt();
+            for (int p = 0; p < params; p++)
+                fn.addParamType(Type.valueOf(in.readUTF()));
+            fn.setReturnSlots(in.readInt());
+            fn.setParamSlots(in.readInt());
+            fn.setLocaSlots(in.readInt());
+            readCode(in, fn);
+            functions.add(fn);
+        }
+        Function start = new Function();
+        start.setName("_start");
+        readCode(in, start);
+        return new ObjectFile(optionsKey, globals, imports, functions, start);
+    }
+
+    private static void readCode(DataInputStream in, Function fn) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Instruction ins = new Instruction(TYPES[in.readUnsignedByte()]);
+            ins.i64 = in.readLong();
+            ins.f64 = Double.longBitsToDouble(in.readLong());
+            fn.addInstruction(ins);
+        }
+        Relocations relocations = new Relocations();
+        int sites = in.readInt();
+        for (int k = 0; k < sites; k++) {
+            Instruction site = fn.getInstruction(in.readInt());
+            relocations.add(site, in.readByte(), in.readUTF());
+        }
+        fn.setRelocations(relocations);
+    }
+}
@@ -0,0 +1,162 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+// Command line flags; everything that is not a flag is a positional argument.
+class Options {
+    // How --exec runs an image: interpreted, translated to JVM bytecode where
+    // possible (see JitCompiler), or both, checking that they agree.
+    enum Tier {
+        INTERP, JIT, COMPARE
+    }
+
+    // Feed the parser from the scanner on demand instead of scanning first.
+    boolean stream;
+    // Run the scanner on its own thread; implies stream.
+    boolean threadedLexer;
+    // Peephole rules to run on every function; null leaves code as emitted.
+    EnumSet<Peephole.Rule> peephole;
+    // Share loca slots between locals whose live ranges do not overlap.
+    boolean packLocals;
+    // Write each function out as soon as it is compiled and drop it, so the
+    // compiler's memory does not grow with the number of functions. Parses
+    // sequentially (--jobs is ignored) and prints no IR listing.
+    boolean streamOutput;
+    // Append a function index to the image (Program.FLAG_INDEX).
+    boolean index;
+    // Record each function's operand stack depth (Program.FLAG_MAX_STACK).
+    boolean maxStack;
+    // Write code with superinstructions (Program.FLAG_SUPER).
+    boolean superinstructions;
+    // Run an o0 image instead of compiling a source.
+    boolean exec;
+    // Check an o0 image in place (see MappedImage); with --exec, before
+    // running it from the mapped file.
+    boolean verify;
+    Tier tier = Tier.INTERP;
+    // Compile function bodies on this many threads; 1 parses sequentially.
+    // Needs the whole token stream, so --stream ignores it.
+    int jobs = 1;
+    // Compile one unit to an ObjectFile: source, object, then the sources or
+    // objects of the units before it.
+    boolean compileOnly;
+    // Link ObjectFiles: image, then the objects in order.
+    boolean link;
+    // Answer CompileProtocol requests instead of compiling files: on
+    // stdin/stdout when servePort is 0, otherwise on that loopback port.
+    boolean serve;
+    int servePort;
+    // Reuse and keep finished images in this directory (see CompileCache).
+    String cacheDir;
+    long cacheMaxBytes = CompileCache.DEFAULT_MAX_BYTES;
+    // Print the cache's hit/miss counters and size on stderr.
+    boolean cacheStats;
+    // Report execution time and dispatch count on stderr.
+    boolean time;
+
+    final List<String> files = new ArrayList<>();
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (String arg : args) {
+            switch (arg) {
+                case "--stream":
+                    options.stream = true;
+                    break;
+                case "--threaded-lexer":
+                    options.stream = true;
+                    options.threadedLexer = true;
+                    break;
+                case "--stream-output":
+                    options.streamOutput = true;
+                    break;
+                case "--index":
+                    options.index = true;
+                    break;
+                case "--max-stack":
+                    options.maxStack = true;
+                    break;
+                case "--super":
+                    options.superinstructions = true;
+                    break;
+                case "--exec":
+                    options.exec = true;
+                    break;
+                case "--verify":
+                    options.verify = true;
+                    break;
+                case "--time":
+                    options.time = true;
+                    break;
+                case "-O":
+                    options.peephole = EnumSet.allOf(Peephole.Rule.class);
+                    options.packLocals = true;
+                    break;
+                case "-c":
+                    options.compileOnly = true;
+                    break;
+                case "--link":
+                    options.link = true;
+                    break;
+                case "--serve":
+                    options.serve = true;
+                    break;
+                case "--cache-stats":
+                    options.cacheStats = true;
+                    break;
+                case "--pack-locals":
+                    options.packLocals = true;
+                    break;
+                default:
+                    if (arg.startsWith("--peephole=")) {
+                        options.peephole = Peephole.Rule.parse(arg.substring("--peephole=".length()));
+                        break;
+                    }
+                    if (arg.startsWith("--tier=")) {
+                        options.tier = Tier.valueOf(arg.substring("--tier=".length()).toUpperCase());
+                        break;
+                    }
+                    if (arg.startsWith("--jobs=")) {
+                        options.jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+                        if (options.jobs < 1)
+                            throw new IllegalArgumentException("--jobs must be at least 1");
+                        break;
+                    }
+                    if (arg.startsWith("--serve=")) {
+                        options.serve = true;
+                        options.servePort = Integer.parseInt(arg.substring("--serve=".length()));
+                        break;
+                    }
+                    if (arg.startsWith("--cache-dir=")) {
+                        options.cacheDir = arg.substring("--cache-dir=".length());
+                        break;
+                    }
+                    if (arg.startsWith("--cache-max-bytes=")) {
+                        options.cacheMaxBytes = Long.parseLong(arg.substring("--cache-max-bytes=".length()));
+                        break;
+                    }
+                    if (arg.startsWith("--"))
+                        throw new IllegalArgumentException("unknown option " + arg);
+                    options.files.add(arg);
+            }
+        }
+        return options;
+    }
+
+    // The options that change the emitted bytes, for cache keys. --stream,
+    // --threaded-lexer, --jobs and --stream-output produce the same image and
+    // are left out.
+    String outputKey() {
+        return "peephole=" + peephole + " packLocals=" + packLocals;
+    }
+
+    // Program flags for the optional parts of the image these options ask
+    // for. They only matter once a Program is written out, so objects are
+    // linked without regard to them.
+    int imageFlags() {
+        return (index ? Program.FLAG_INDEX : 0) | (maxStack ? Program.FLAG_MAX_STACK : 0)
+                | (superinstructions ? Program.FLAG_SUPER : 0);
+    }
+}
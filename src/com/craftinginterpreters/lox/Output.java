@@ -1,10 +1,40 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.List;
 
 class Output {
-    List<Byte> output = new ArrayList<>();
+    private final BinaryEmitter output = new BinaryEmitter();
+    // --stream-output: functions written so far, in the order they will
+    // appear in the image.
+    private FileChannel spill;
+    // Program.FLAG_INDEX: fid, offset and length of every function after
+    // _start, and of _start, as they are written.
+    private int[] fids = new int[64];
+    private long[] offsets = new long[64];
+    private int[] lengths = new int[64];
+    private int count;
+    private long startOffset;
+    private int startLength;
+    // Program flags of the image being written.
+    private int flags;
+    // Return and param slots by fid of every function seen so far, for the
+    // stack effect of calls in Program.FLAG_MAX_STACK and FLAG_SUPER.
+    private int[] returnSlots = new int[0];
+    private int[] paramSlots = new int[0];
+    private final StackDepth.Signatures signatures = new StackDepth.Signatures() {
+        @Override
+        public int returnSlots(int fid) {
+            return fid >= 0 && fid < returnSlots.length ? returnSlots[fid] : -1;
+        }
+
+        @Override
+        public int paramSlots(int fid) {
+            return fid >= 0 && fid < paramSlots.length ? paramSlots[fid] : -1;
+        }
+    };
 
     static void printIR(Program program) {
         int sum = program.get_start().getInstructionCount();
@@ -27,94 +57,171 @@ class Output {
             System.out.println("-------------------");
         }
         System.out.println(sum);
+        SymbolTable globals = program.getGlobals();
+        System.out.println("string pool: " + globals.getStringSlotsSaved() + " slots, "
+                + globals.getStringBytesSaved() + " bytes saved");
         System.out.println("success!");
     }
 
     byte[] gen(Program program) {
-        output.addAll(int2bytes(4, program.getMagic()));
-        output.addAll(int2bytes(4, program.getVersion()));
+        emit(program);
+        return output.toByteArray();
+    }
 
-        output.addAll(int2bytes(4, program.getGlobals().getTable().size()));
-        for (Variable var : program.getGlobals().getTable()) {
-            if (var.isConst())
-                output.addAll(int2bytes(1, 1));
-            else
-                output.addAll(int2bytes(1, 0));
-            output.addAll(int2bytes(4, var.getSize()));
-            if (var.getType() == Type.STRING)
-                output.addAll(string2bytes(var.getValue()));
-            else
-                output.addAll(long2bytes(8, 0));
-        }
+    void gen(Program program, FileChannel channel) throws IOException {
+        output.setChannel(channel);
+        emit(program);
+        output.drain();
+    }
 
-        output.addAll(int2bytes(4, program.getFunctions().getFunctions().size() + 1));
+    // Streaming emission. The image leads with the globals and _start, which
+    // are only complete once the whole source is parsed, so each function is
+    // written to `spill` as soon as it is finished and released; finish()
+    // then writes the head to the real output and copies the spill after it.
+    // `flags` are those the Program will have when finished, since they
+    // decide the layout of the functions spilled before that.
+    void startSpill(FileChannel spill, int flags) {
+        this.spill = spill;
+        this.flags = flags;
+        output.setChannel(spill);
+    }
 
-        genFunction(program.get_start());
+    void spill(Function fn) {
+        declare(fn);
+        genFunction(fn);
+        fn.release();
+    }
+
+    void finish(Program program, FileChannel channel) throws IOException {
+        output.drain();
+        long size = output.position();
+        output.reset();
+        output.setChannel(channel);
+        declare(program.get_start());
+        emitHead(program);
+        long head = output.position();
+        output.drain();
+        for (long at = 0; at < size; )
+            at += spill.transferTo(at, size - at, channel);
+        if (isIndexed(program)) {
+            for (int i = 0; i < count; i++)
+                offsets[i] += head;
+            output.reset();
+            emitIndex(head + size);
+            output.drain();
+        }
+    }
+
+    private void emit(Program program) {
+        flags = program.getVersion();
+        declare(program.get_start());
+        for (Function fn : program.getFunctions().getFunctions())
+            declare(fn);
+        emitHead(program);
         for (Function fn : program.getFunctions().getFunctions()) {
             genFunction(fn);
         }
+        if (isIndexed(program))
+            emitIndex(output.position());
+    }
 
-        byte[] res = new byte[output.size()];
-        for (int i = 0; i < output.size(); i++) {
-            res[i] = output.get(i);
-        }
-        return res;
+    private static boolean isIndexed(Program program) {
+        return (program.getVersion() & Program.FLAG_INDEX) != 0;
     }
 
-    private void genFunction(Function fn) {
-        output.addAll(int2bytes(4, fn.getFid()));
-        output.addAll(int2bytes(4, fn.getReturnSlots()));
-        output.addAll(int2bytes(4, fn.getParamSlots()));
-        output.addAll(int2bytes(4, fn.getLocaSlots()));
-        output.addAll(int2bytes(4, fn.getInstructionCount()));
-
-        for (Instruction ins : fn.getInstructionList()) {
-            output.addAll(int2bytes(1, ins.getOp()));
-            if (ins.isFloat())
-                output.addAll(double2Bytes(ins.f64));
-            else {
-                if (ins.getOp() == 0x01) // push u64
-                    output.addAll(long2bytes(8, ins.i64));
-                else if (ins.i64 != Long.MIN_VALUE)
-                    output.addAll(long2bytes(4, ins.i64));
-            }
+    // The trailing index (see Program.FLAG_INDEX), written at `at`.
+    private void emitIndex(long at) {
+        output.u32(count + 1);
+        output.u32(0);
+        output.u64(startOffset);
+        output.u32(startLength);
+        for (int i = 0; i < count; i++) {
+            output.u32(fids[i]);
+            output.u64(offsets[i]);
+            output.u32(lengths[i]);
         }
+        output.u64(at);
     }
 
-    private static List<Byte> double2Bytes(double d) {
-        long value = Double.doubleToRawLongBits(d);
-        List<Byte> byteRet = new ArrayList<>();
-        int start = 8 * (8-1);
-        for (int i = 0; i < 8; i++) {
-            byteRet.add((byte) (( value >> ( start - i * 8 )) & 0xFF ));
+    // Everything before the first function after _start.
+    private void emitHead(Program program) {
+        output.u32(program.getMagic());
+        output.u32(program.getVersion());
+
+        output.u32(program.getGlobals().getTable().size());
+        for (Variable var : program.getGlobals().getTable()) {
+            output.u8(var.isConst() ? 1 : 0);
+            output.u32(var.getSize());
+            if (var.getType() == Type.STRING)
+                output.latin1(var.getValue());
+            else
+                output.u64(0);
         }
-        return byteRet;
+
+        output.u32(program.getFunctions().getFunctions().size() + 1);
+
+        genFunction(program.get_start());
     }
 
-    private static List<Byte> string2bytes(String valueString) {
-        List<Byte> AB = new ArrayList<>();
-        for (int i=0;i<valueString.length();i++){
-            char ch=valueString.charAt(i);
-            AB.add((byte)(ch&0xff));
+    private void genFunction(Function fn) {
+        long at = output.position();
+        emitFunction(fn);
+        int length = (int) (output.position() - at);
+        if (fn.getFid() == 0) {
+            startOffset = at;
+            startLength = length;
+            return;
+        }
+        if (count == fids.length) {
+            fids = Arrays.copyOf(fids, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
         }
-        return AB;
+        fids[count] = fn.getFid();
+        offsets[count] = at;
+        lengths[count] = length;
+        count++;
     }
 
-    private static List<Byte> long2bytes(int length, long target) {
-        List<Byte> bytes = new ArrayList<>();
-        int start = 8 * (length-1);
-        for(int i = 0 ; i < length; i++){
-            bytes.add((byte) (( target >> ( start - i * 8 )) & 0xFF ));
+    private void declare(Function fn) {
+        int fid = fn.getFid();
+        if (fid >= returnSlots.length) {
+            int old = returnSlots.length;
+            returnSlots = Arrays.copyOf(returnSlots, Math.max(old * 2, fid + 1));
+            paramSlots = Arrays.copyOf(paramSlots, returnSlots.length);
+            Arrays.fill(returnSlots, old, returnSlots.length, -1);
+            Arrays.fill(paramSlots, old, paramSlots.length, -1);
         }
-        return bytes;
+        returnSlots[fid] = fn.getReturnSlots();
+        paramSlots[fid] = fn.getParamSlots();
     }
 
-    private static List<Byte> int2bytes(int length, int target){
-        List<Byte> bytes = new ArrayList<>();
-        int start = 8 * (length-1);
-        for(int i = 0 ; i < length; i++){
-            bytes.add((byte) (( target >> ( start - i * 8 )) & 0xFF ));
+    private void emitFunction(Function fn) {
+        output.u32(fn.getFid());
+        output.u32(fn.getReturnSlots());
+        output.u32(fn.getParamSlots());
+        output.u32(fn.getLocaSlots());
+        List<Instruction> code = fn.getInstructionList();
+        if ((flags & Program.FLAG_SUPER) != 0)
+            code = new Superinstructions(signatures).select(code);
+        if ((flags & Program.FLAG_MAX_STACK) != 0) {
+            StackDepth stack = StackDepth.of(code, signatures);
+            if (!stack.isValid())
+                throw new IllegalStateException(fn.getName() + ": " + stack.getError());
+            output.u32(stack.getMax());
+        }
+        output.u32(code.size());
+
+        for (Instruction ins : code) {
+            output.u8(ins.getOp());
+            if (ins.isFloat())
+                output.f64(ins.f64);
+            else {
+                if (ins.getType().getOperandSize() == 8) // push, incl
+                    output.u64(ins.i64);
+                else if (ins.i64 != Long.MIN_VALUE)
+                    output.u32((int) ins.i64);
+            }
         }
-        return bytes;
     }
 }
@@ -1,20 +1,99 @@
 package com.craftinginterpreters.lox;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 import static com.craftinginterpreters.lox.InstructionType.*;
 
 class Parser {
-    private static class ParseError extends RuntimeException {}
+    static class ParseError extends RuntimeException {}
+
+    // Jump targets of the innermost enclosing while: `head` is the back edge,
+    // `next` re-tests the condition (continue), `exit` is past the loop.
+    private static class Loop {
+        final Label head = new Label();
+        final Label next = new Label();
+        final Label exit = new Label();
+    }
+
+    // A function body left for phase two of parseParallel: tokens
+    // [start, end) after the '{', the parameter scope, and how many globals
+    // were declared when the body began. The declaration itself begins at
+    // `header`, the function's name.
+    static class Body {
+        final Function function;
+        final SymbolTable scope;
+        final int header;
+        final int start;
+        final int globalLimit;
+        int end;
+
+        Body(Function function, SymbolTable scope, int header, int start, int globalLimit) {
+            this.function = function;
+            this.scope = scope;
+            this.header = header;
+            this.start = start;
+            this.globalLimit = globalLimit;
+        }
+    }
+
+    // What phase one leaves for phase two: the bodies in source order and
+    // their string literals, pooled by token index.
+    static class Outline {
+        final List<Body> bodies;
+        final Map<Integer, Variable> pooled;
+
+        Outline(List<Body> bodies, Map<Integer, Variable> pooled) {
+            this.bodies = bodies;
+            this.pooled = pooled;
+        }
+    }
+
+    // Tokens kept behind `current` when streaming; the parser never looks
+    // further back than a declaration header.
+    private static final int KEEP = 16;
+    private static final int WINDOW = 256;
 
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
+    private final TokenSource source;
+    private final Diagnostics diagnostics;
     private int current = 0;
     private int nextGlobalOffset;
     private FunctionTable functionTable;
 
-    Parser(List<Token> tokens) {
+    // Parallel mode only. Errors abort quietly, since the sequential rerun
+    // reports them; a body sees only the globals and functions declared
+    // before it; string literals were pooled up front, by token index.
+    private boolean quiet;
+    private List<Body> bodies;
+    private Map<Integer, Variable> pooled;
+    private long globalLimit = Long.MAX_VALUE;
+    private int fidLimit = Integer.MAX_VALUE;
+    // Compiling one unit for -c: no main is needed, and every function gets
+    // Relocations for the linker.
+    private boolean unit;
+    // Phase one interns every name it steps over, for concurrent workers.
+    private boolean internNames;
+    // Sequential mode only: handed each function as soon as it is finished.
+    private Consumer<Function> finished;
+
+    Parser(TokenBuffer tokens, Diagnostics diagnostics) {
+        this(tokens, null, diagnostics);
+    }
+
+    // Pulls tokens from `source` as they are needed, keeping only a small
+    // window of `tokens` alive.
+    Parser(TokenBuffer tokens, TokenSource source, Diagnostics diagnostics) {
         this.tokens = tokens;
+        this.source = source;
+        this.diagnostics = diagnostics;
+    }
+
+    void setFinished(Consumer<Function> finished) {
+        this.finished = finished;
     }
 
     void parse(Program program) {
@@ -22,18 +101,110 @@ class Parser {
         Function _start = program.get_start();
         SymbolTable globals = program.getGlobals();
         functionTable = program.getFunctions();
+        if (unit)
+            _start.setRelocations(new Relocations());
         while (!isAtEnd()) {
-            declaration(globals, _start, -1);
+            declaration(globals, _start, null);
         }
+        program.setNextGlobalOffset(nextGlobalOffset);
+        if (unit)
+            return;
         Function main = program.getFunction("main");
+        if (main == null)
+            throw error(current, "no main function");
         _start.addInstruction(new Instruction(call, main.getFid()));
     }
 
+    // Compiles function bodies concurrently on `pool`. Phase one walks the
+    // top level in order exactly as parse() does, but steps over each body
+    // after pooling its string literals, so fids and global slots come out
+    // the same; phase two compiles the bodies. Returns false, with `program`
+    // left unusable, when the sequential parser has to run instead: on any
+    // error, so it is reported once and in order, and on nested functions,
+    // whose fids and name slots depend on their enclosing body.
+    static boolean parseParallel(TokenBuffer tokens, Program program, ForkJoinPool pool) {
+        Outline outline = outline(tokens, program, true);
+        if (outline == null)
+            return false;
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(outline.bodies.size());
+        for (Body body : outline.bodies) {
+            tasks.add(pool.submit(() ->
+                    compileBody(tokens, program.getFunctions(), outline.pooled, body, null)));
+        }
+        boolean ok = true;
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (RuntimeException e) {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    // Compiles the unit in `tokens` on top of `program`, which holds what
+    // the units before it declare.
+    void parseUnit(Program program) {
+        unit = true;
+        parse(program);
+    }
+
+    // Adds what the unit in `tokens` declares to `program` without compiling
+    // its bodies; false on any error.
+    static boolean declareUnit(TokenBuffer tokens, Program program) {
+        Parser parser = new Parser(tokens, new Diagnostics());
+        parser.quiet = true;
+        parser.unit = true;
+        parser.bodies = new ArrayList<>();
+        parser.pooled = new HashMap<>();
+        try {
+            parser.parse(program);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        return true;
+    }
+
+    // Phase one of parseParallel on its own; null on any error. Unless
+    // `forWorkers`, the bodies must then be compiled on one thread.
+    static Outline outline(TokenBuffer tokens, Program program, boolean forWorkers) {
+        Parser parser = new Parser(tokens, new Diagnostics());
+        parser.quiet = true;
+        parser.internNames = forWorkers;
+        parser.bodies = new ArrayList<>();
+        parser.pooled = new HashMap<>();
+        try {
+            parser.parse(program);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return new Outline(parser.bodies, parser.pooled);
+    }
+
+    // Phase two for one body. Throws on any error; `relocations`, if not
+    // null, receives every operand that names a global or a function.
+    static void compileBody(TokenBuffer tokens, FunctionTable functions,
+                            Map<Integer, Variable> pooled, Body body, Relocations relocations) {
+        Parser parser = new Parser(tokens, new Diagnostics());
+        parser.quiet = true;
+        parser.functionTable = functions;
+        parser.pooled = pooled;
+        body.function.setRelocations(relocations);
+        parser.current = body.start;
+        parser.globalLimit = body.globalLimit;
+        parser.fidLimit = body.function.getFid();
+        parser.block(body.scope, body.function, null);
+        if (parser.current != body.end)
+            throw new ParseError();
+        parser.finishBody(body.function);
+    }
+
     private Expr expression(SymbolTable symbolTable, Function fn) {
         return assignment(symbolTable, fn);
     }
 
-    private void declaration(SymbolTable symbolTable, Function fn, int whileCnt) {
+    private void declaration(SymbolTable symbolTable, Function fn, Loop loop) {
         if (match(FN)) {
             function(symbolTable);
             return;
@@ -47,12 +218,12 @@ class Parser {
             return;
         }
 
-        statement(symbolTable, fn, whileCnt);
+        statement(symbolTable, fn, loop);
     }
 
-    private void statement(SymbolTable symbolTable, Function fn, int whileCnt) {
+    private void statement(SymbolTable symbolTable, Function fn, Loop loop) {
         if (match(IF)) {
-            ifStatement(symbolTable, fn, whileCnt);
+            ifStatement(symbolTable, fn, loop);
             return;
         }
         if (match(RETURN)) {
@@ -60,17 +231,16 @@ class Parser {
             return;
         }
         if (match(BREAK)) {
-            if (whileCnt == -1)
-                throw error(peek(), "must break in a while");
+            if (loop == null)
+                throw error(current, "must break in a while");
             consume(SEMICOLON, "Expect ';'.");
-            fn.addInstruction(new Instruction(br, Long.MAX_VALUE));
+            fn.addJump(br, loop.exit);
             return;
         }
         if (match(CONTINUE)) {
-            if (whileCnt == -1)
-                throw error(peek(), "must continue in a while");
-            int t = fn.getInstructionCount();
-            fn.addInstruction(new Instruction(br, whileCnt - t));
+            if (loop == null)
+                throw error(current, "must continue in a while");
+            fn.addJump(br, loop.next);
             return;
         }
         if (match(WHILE)) {
@@ -79,7 +249,7 @@ class Parser {
         }
         if (match(LEFT_BRACE)) {
             SymbolTable newSymbolTable = new SymbolTable(symbolTable);
-            block(newSymbolTable, fn, whileCnt);
+            block(newSymbolTable, fn, loop);
             return;
         }
         if (match(SEMICOLON)) {
@@ -89,36 +259,35 @@ class Parser {
         expressionStatement(symbolTable, fn);
     }
 
-    private void ifStatement(SymbolTable symbolTable, Function fn, int whileCnt) {
+    private void ifStatement(SymbolTable symbolTable, Function fn, Loop loop) {
         Expr condition = expression(symbolTable, fn);
         SymbolTable newSymbolTable = new SymbolTable(symbolTable);
-        int id = fn.addInstruction(new Instruction(brFalse, 0));
-        if (peek().type == LEFT_BRACE) {
-            statement(newSymbolTable, fn, whileCnt);
+        Label otherwise = new Label();
+        fn.addJump(brFalse, otherwise);
+        if (peek() == LEFT_BRACE) {
+            statement(newSymbolTable, fn, loop);
             newSymbolTable.clear();
             if (match(ELSE)) {
-                int id2 = fn.addInstruction(new Instruction(br, 0));
-                Instruction jmp = fn.getInstruction(id);
-                jmp.i64 = id2 - id;
-                if (peek().type == LEFT_BRACE) {
-                    statement(newSymbolTable, fn, whileCnt);
+                Label end = new Label();
+                fn.addJump(br, end);
+                fn.bind(otherwise);
+                if (peek() == LEFT_BRACE) {
+                    statement(newSymbolTable, fn, loop);
                 } else if (match(IF)) {
-                    ifStatement(symbolTable, fn, whileCnt);
+                    ifStatement(symbolTable, fn, loop);
                 } else {
-                    throw error(peek(), "Expect '{' or 'if'");
+                    throw error(current, "Expect '{' or 'if'");
                 }
 
-                int id3 = fn.addInstruction(new Instruction(nop));
-                Instruction jmp2 = fn.getInstruction(id2);
-                jmp2.i64 = id3 - id2;
+                fn.addInstruction(new Instruction(nop));
+                fn.bind(end);
             } else {
-                int id4 = fn.addInstruction(new Instruction(nop));
-                Instruction jmp = fn.getInstruction(id);
-                jmp.i64 = id4 - id;
+                fn.addInstruction(new Instruction(nop));
+                fn.bind(otherwise);
             }
             return;
         }
-        throw error(peek(), "Expect '{'");
+        throw error(current, "Expect '{'");
     }
 
     private void returnStatement(SymbolTable symbolTable, Function fn) {
@@ -127,63 +296,58 @@ class Parser {
         if (!check(SEMICOLON)) {
             Expr value = expression(symbolTable, fn);
             if (value.valType != fn.getReturnType())
-                throw error(peek(), "function return type err");
+                throw error(current, "function return type err");
             if (fn.getReturnType() != Type.VOID)
                 fn.addInstruction(new Instruction(store64));
         } else if (fn.getReturnType() != Type.VOID)
-            throw error(peek(), "function return type err");
+            throw error(current, "function return type err");
         fn.addInstruction(new Instruction(ret));
         consume(SEMICOLON, "Expect ';' after return value.");
     }
 
     private void whileStatement(SymbolTable symbolTable, Function fn) {
-        int x = fn.addInstruction(new Instruction(nop));
+        Loop loop = new Loop();
+        fn.bind(loop.head);
+        fn.addInstruction(new Instruction(nop));
+        fn.bind(loop.next);
         Expr condition = expression(symbolTable, fn);
         fn.addInstruction(new Instruction(brTrue, 1));
-        int id = fn.addInstruction(new Instruction(br, 0));
+        fn.addJump(br, loop.exit);
         SymbolTable newSymbolTable = new SymbolTable(symbolTable);
-        if (peek().type == LEFT_BRACE) {
-            statement(newSymbolTable, fn, x);
-            int ed = fn.getInstructionCount();
-            fn.addInstruction(new Instruction(br, x-ed-1));
-            ed = fn.addInstruction(new Instruction(nop));
-            Instruction jmp = fn.getInstruction(id);
-            jmp.i64 = ed-id;
-            List<Instruction> instructions = fn.getInstructionList();
-            for (int i = 0; i < instructions.size(); i++) {
-                if (instructions.get(i).isBreak()) {
-                    Instruction ins = fn.getInstruction(i);
-                    ins.i64 = ed-i;
-                }
-            }
+        if (peek() == LEFT_BRACE) {
+            statement(newSymbolTable, fn, loop);
+            fn.addJump(br, loop.head);
+            fn.addInstruction(new Instruction(nop));
+            fn.bind(loop.exit);
         } else
-            throw error(peek(), "Expect '{'");
+            throw error(current, "Expect '{'");
     }
 
     private void varDeclaration(SymbolTable symbolTable, Function fn) {
-        Token name = consume(IDENTIFIER, "Expect variable name.");
+        int name = consume(IDENTIFIER, "Expect variable name.");
         consume(COLON, "Expect ':'");
-        Token type = consume(IDENTIFIER, "Expect type");
+        int type = consume(IDENTIFIER, "Expect type");
         Type valtype;
-        if (type.lexeme.equals("int"))
+        if (tokens.lexemeEquals(type, "int"))
             valtype = Type.INT;
-        else if (type.lexeme.equals("double"))
+        else if (tokens.lexemeEquals(type, "double"))
             valtype = Type.DOUBLE;
         else
             throw error(previous(), "Type must be int or double");
 
         Kind kind = symbolTable.isGlobalTable() ? Kind.GLOBAL : Kind.VAR;
         long addr = kind == Kind.GLOBAL ? nextGlobalOffset++ : fn.nextLoca();
-        symbolTable.addVar(new Variable(name.lexeme, kind, valtype, addr, false));
+        Variable var = new Variable(tokens.lexeme(name), kind, valtype, addr, false);
+        declare(symbolTable, var, name);
 
         if (match(EQUAL)) {
             if (kind == Kind.GLOBAL)
-                fn.addInstruction(new Instruction(globa, addr));
+                emitGlobal(fn, var.getName(), var);
             else // Kind.VAR
                 fn.addInstruction(new Instruction(loca, addr));
             Expr initializer = expression(symbolTable, fn);
             if (initializer.valType != valtype)
-                throw error(peek(), "let lhs and rhs type not matched");
+                throw error(current, "let lhs and rhs type not matched");
             fn.addInstruction(new Instruction(store64));
         }
 
@@ -191,13 +355,13 @@ class Parser {
     }
 
     private void constDeclaration(SymbolTable symbolTable, Function fn) {
-        Token name = consume(IDENTIFIER, "Expect const name.");
+        int name = consume(IDENTIFIER, "Expect const name.");
         consume(COLON, "Expect ':'");
-        Token type = consume(IDENTIFIER, "Expect type");
+        int type = consume(IDENTIFIER, "Expect type");
         Type valtype;
-        if (type.lexeme.equals("int"))
+        if (tokens.lexemeEquals(type, "int"))
             valtype = Type.INT;
-        else if (type.lexeme.equals("double"))
+        else if (tokens.lexemeEquals(type, "double"))
             valtype = Type.DOUBLE;
         else
             throw error(previous(), "Type must be int or double");
@@ -205,32 +369,43 @@ class Parser {
 
         Kind kind = symbolTable.isGlobalTable() ? Kind.GLOBAL : Kind.VAR;
         long addr = kind == Kind.GLOBAL ? nextGlobalOffset++ : fn.nextLoca();
-        symbolTable.addVar(new Variable(name.lexeme, kind, valtype, addr, true));
+        Variable var = new Variable(tokens.lexeme(name), kind, valtype, addr, true);
+        declare(symbolTable, var, name);
 
+        int mark = fn.getInstructionCount();
         if (kind == Kind.GLOBAL)
-            fn.addInstruction(new Instruction(globa, addr));
+            emitGlobal(fn, var.getName(), var);
         else // Kind.VAR
             fn.addInstruction(new Instruction(loca, addr));
         Expr initializer = expression(symbolTable, fn);
         if (initializer.valType != valtype)
-            throw error(peek(), "let lhs and rhs type not matched");
-        fn.addInstruction(new Instruction(store64));
+            throw error(current, "let lhs and rhs type not matched");
+        if (isConstant(initializer)) {
+            // every use becomes a push, so the slot is never read
+            var.setConstValue(initializer.val);
+            fn.truncate(mark);
+        } else
+            fn.addInstruction(new Instruction(store64));
 
         consume(SEMICOLON, "Expect ';' after const declaration.");
     }
 
     private void expressionStatement(SymbolTable symbolTable, Function fn) {
+        int mark = fn.getInstructionCount();
         Expr expr = expression(symbolTable, fn);
+        if (isConstant(expr))
+            fn.truncate(mark);
         consume(SEMICOLON, "Expect ';' after expression.");
     }
 
     private void function(SymbolTable symbolTable) {
         Function function = new Function();
         SymbolTable newSymbolTable = new SymbolTable(symbolTable);
-        Token name = consume(IDENTIFIER, "Expect function name.");
-        if (functionTable.isDeclared(name.lexeme))
+        int name = consume(IDENTIFIER, "Expect function name.");
+        String fnName = tokens.lexeme(name);
+        if (functionTable.isDeclared(fnName))
             throw error(name, "function name exists or same with global var");
-        function.setName(name.lexeme);
+        function.setName(fnName);
         consume(LEFT_PAREN, "Expect '(' after function name.");
         List<Variable> parameters = new ArrayList<>();
         if (!check(RIGHT_PAREN)) {
@@ -238,26 +413,26 @@ class Parser {
                 Variable var = new Variable();
                 if (match(CONST))
                     var.setConst(true);
-                consume(IDENTIFIER, "Expect parameter name.");
-                var.setName(previous().lexeme);
+                int paramName = consume(IDENTIFIER, "Expect parameter name.");
+                var.setName(tokens.lexeme(paramName));
                 consume(COLON, "Expect ':'");
-                Token ty = consume(IDENTIFIER, "Expect ty");
-                if (ty.lexeme.equals("int"))
+                int ty = consume(IDENTIFIER, "Expect ty");
+                if (tokens.lexemeEquals(ty, "int"))
                     var.setType(Type.INT);
-                else if (ty.lexeme.equals("double"))
+                else if (tokens.lexemeEquals(ty, "double"))
                     var.setType(Type.DOUBLE);
                 else
                     throw error(ty, "function param type cannot be void");
                 var.setKind(Kind.PARAM);
                 parameters.add(var);
-                newSymbolTable.addVar(var);
+                declare(newSymbolTable, var, paramName);
                 function.addParamType(var.getType());
             } while (match(COMMA));
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
         consume(ARROW, "Expect '->' after ')'");
-        Token ty = consume(IDENTIFIER, "Expect ty after '->'");
-        switch (ty.lexeme) {
+        int ty = consume(IDENTIFIER, "Expect ty after '->'");
+        switch (tokens.lexeme(ty)) {
             case "void":
                 function.setReturnType(Type.VOID);
                 function.setReturnSlots(0);
@@ -286,78 +461,89 @@ class Parser {
                 throw error(previous(), "ty must be void or int or double");
         }
         function.setFid(functionTable.getNextFid());
+        if (unit)
+            function.setRelocations(new Relocations());
         consume(LEFT_BRACE, "Expect '{' before function body.");
-        block(newSymbolTable, function, -1);
+        SymbolTable global = symbolTable.getGlobal();
+        if (bodies != null) {
+            Body body = new Body(function, newSymbolTable, name, current, nextGlobalOffset);
+            skipBody(global);
+            body.end = current;
+            bodies.add(body);
+        } else {
+            block(newSymbolTable, function, null);
+            finishBody(function);
+        }
 
+        Variable fn_name = global.getString(fnName);
+        if (fn_name == null) {
+            fn_name = new Variable();
+            fn_name.setName("");
+            fn_name.setKind(Kind.GLOBAL);
+            fn_name.setType(Type.STRING);
+            fn_name.setConst(true);
+            fn_name.setSize(fnName.length());
+            fn_name.setAddr(nextGlobalOffset++);
+            fn_name.setValue(fnName);
+            global.addString(fn_name);
+        }
+        function.setFname(fn_name.getAddr());
+        functionTable.addFunction(function);
+        if (finished != null)
+            finished.accept(function);
+    }
+
+    private void finishBody(Function function) {
         // needed when there is no return in block and return type is void
         if (function.getReturnType() == Type.VOID)
             function.addInstruction(new Instruction(ret));
         else
             function.addInstruction(new Instruction(nop));
 
-        // return check
+        // return check: no reachable path may run off the end of the body
         if (function.getReturnType() != Type.VOID) {
-            Set<Integer> tmp = new TreeSet<>();
-            tmp.add(0);
-            for (int i = 0; i < function.getInstructionCount(); i++) {
-                Instruction ins = function.getInstruction(i);
-                if (ins.isJmp()) {
-                    tmp.add(i+1);
-                    if (ins.isBr())
-                        tmp.add(i+1 + (int) ins.i64);
-                }
-            }
-
-            List<Integer> basicBlockStart = new ArrayList<>(tmp);
-            List<Integer>[] adj = new ArrayList[basicBlockStart.size()];
-            Map<Integer, Integer> mp = new HashMap<>();
-            for (int i = 0; i < basicBlockStart.size(); i++) {
-                adj[i] = new ArrayList<>();
-                mp.put(basicBlockStart.get(i), i);
-            }
-
-            for (int i = 0; i+1 < basicBlockStart.size(); i++) {
-                int ip = basicBlockStart.get(i+1);
-                Instruction ins = function.getInstruction(ip - 1);
-                if (ins.isJmp()) {
-                    if (ins.isBr())
-                        adj[i].add(mp.get(ip + (int) ins.i64));
-                    if (!ins.isUnconditionalJmp())
-                        adj[i].add(i+1);
-                } else
-                    adj[i].add(i+1);
-            }
-            boolean[] vis = new boolean[adj.length];
-            List<Integer> res = new ArrayList<>();
-            dfs(adj, vis, 0, res);
-            for (int x : res) {
-                int id;
-                if (x+1 < basicBlockStart.size())
-                    id = basicBlockStart.get(x+1) - 1;
-                else
-                    id = basicBlockStart.size() - 1;
-                if (function.getInstruction(id).getOp() != ret.getNum())
+            ControlFlowGraph cfg = new ControlFlowGraph(function);
+            for (int b : cfg.getReversePostorder()) {
+                if (cfg.fallsOff(b))
                     throw error(previous(), "fail return check");
             }
         }
+    }
 
-        SymbolTable global = symbolTable.getGlobal();
-        Variable fn_name = new Variable();
-        fn_name.setName("");
-        fn_name.setKind(Kind.GLOBAL);
-        fn_name.setType(Type.STRING);
-        fn_name.setConst(true);
-        fn_name.setSize(name.lexeme.length());
-        fn_name.setAddr(nextGlobalOffset++);
-        fn_name.setValue(name.lexeme);
-        global.addVar(fn_name);
-        function.setFname(fn_name.getAddr());
-        functionTable.addFunction(function);
+    // Phase one of parseParallel: steps over a function body, pooling its
+    // string literals in the order compiling it would and interning every
+    // name in it, so that the workers never write to shared tables.
+    private void skipBody(SymbolTable globals) {
+        int depth = 1;
+        while (depth > 0) {
+            if (isAtEnd())
+                throw error(current, "Expect '}' after block.");
+            switch (peek()) {
+                case LEFT_BRACE:
+                    depth++;
+                    break;
+                case RIGHT_BRACE:
+                    depth--;
+                    break;
+                case FN:
+                    throw error(current, "nested function");
+                case STRING:
+                    pooled.put(current, poolString(globals, tokens.stringValue(current)));
+                    break;
+                case IDENTIFIER:
+                    if (internNames)
+                        globals.internName(tokens.lexeme(current));
+                    break;
+                default:
+                    break;
+            }
+            advance();
+        }
     }
 
-    private void block(SymbolTable symbolTable, Function fn, int whileCnt) {
+    private void block(SymbolTable symbolTable, Function fn, Loop loop) {
         while (!check(RIGHT_BRACE) && !isAtEnd()) {
-            declaration(symbolTable, fn, whileCnt);
+            declaration(symbolTable, fn, loop);
         }
 
         consume(RIGHT_BRACE, "Expect '}' after block.");
@@ -365,25 +551,25 @@ class Parser {
 
     private Expr assignment(SymbolTable symbolTable, Function fn) {
         if (check(IDENTIFIER)) {
-            if (peekNext().type == EQUAL) {
-                String name = peek().lexeme;
-                Variable l_expr = symbolTable.getVar(name);
+            if (peekNext() == EQUAL) {
+                String name = tokens.lexeme(current);
+                Variable l_expr = getVar(symbolTable, name);
                 if (l_expr == null)
-                    throw error(peek(), "Invalid assignment target.");
+                    throw error(current, "Invalid assignment target.");
                 advance(); advance();
                 if (l_expr.isConst())
-                    throw error(peek(), "const cannot be assigned");
+                    throw error(current, "const cannot be assigned");
                 if (l_expr.getKind() == Kind.GLOBAL)
-                    fn.addInstruction(new Instruction(globa, l_expr.getAddr()));
+                    emitGlobal(fn, name, l_expr);
                 else if (l_expr.getKind() == Kind.PARAM)
                     fn.addInstruction(new Instruction(arga, l_expr.getAddr()));
                 else if (l_expr.getKind() == Kind.VAR)
                     fn.addInstruction(new Instruction(loca, l_expr.getAddr()));
                 else
-                    throw error(peek(), "assign rhs should not be void");
+                    throw error(current, "assign rhs should not be void");
                 Expr value = assignment(symbolTable, fn);
                 if (l_expr.getType() != value.valType)
-                    throw error(peek(), "l_expr and value type not same");
+                    throw error(current, "l_expr and value type not same");
                 fn.addInstruction(new Instruction(store64));
                 return new Expr.Assign(Type.VOID);
             }
@@ -393,14 +579,15 @@ class Parser {
     }
 
     private Expr comparison(SymbolTable symbolTable, Function fn) {
+        int mark = fn.getInstructionCount();
         Expr expr = term(symbolTable, fn);
 
         while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, EQUAL_EQUAL, BANG_EQUAL)) {
-            Token operator = previous();
+            TokenType operator = tokens.type(previous());
             Expr right = term(symbolTable, fn);
             if (expr.valType != right.valType)
-                throw error(peek(), "comparison type err");
-            if (operator.type == LESS_EQUAL) {
+                throw error(current, "comparison type err");
+            if (operator == LESS_EQUAL) {
                 if (right.valType == Type.INT)
                     fn.addInstruction(new Instruction(cmpi));
                 else if (right.valType == Type.DOUBLE)
@@ -409,7 +596,7 @@ class Parser {
                     throw error(previous(), "cmp type error");
                 fn.addInstruction(new Instruction(setGt));
                 fn.addInstruction(new Instruction(not));
-            } else if (operator.type == GREATER_EQUAL) {
+            } else if (operator == GREATER_EQUAL) {
                 if (right.valType == Type.INT)
                     fn.addInstruction(new Instruction(cmpi));
                 else if (right.valType == Type.DOUBLE)
@@ -418,7 +605,7 @@ class Parser {
                     throw error(previous(), "cmp type error");
                 fn.addInstruction(new Instruction(setLt));
                 fn.addInstruction(new Instruction(not));
-            } else if (operator.type == LESS) {
+            } else if (operator == LESS) {
                 if (right.valType == Type.INT)
                     fn.addInstruction(new Instruction(cmpi));
                 else if (right.valType == Type.DOUBLE)
@@ -426,7 +613,7 @@ class Parser {
                 else
                     throw error(previous(), "cmp type error");
                 fn.addInstruction(new Instruction(setLt));
-            } else if (operator.type == GREATER) {
+            } else if (operator == GREATER) {
                 if (right.valType == Type.INT)
                     fn.addInstruction(new Instruction(cmpi));
                 else if (right.valType == Type.DOUBLE)
@@ -434,14 +621,14 @@ class Parser {
                 else
                     throw error(previous(), "cmp type error");
                 fn.addInstruction(new Instruction(setGt));
-            } else if (operator.type == BANG_EQUAL) {
+            } else if (operator == BANG_EQUAL) {
                 if (right.valType == Type.INT)
                     fn.addInstruction(new Instruction(cmpi));
                 else if (right.valType == Type.DOUBLE)
                     fn.addInstruction(new Instruction(cmpf));
                 else
                     throw error(previous(), "cmp type error");
-            } else if (operator.type == EQUAL_EQUAL) {
+            } else if (operator == EQUAL_EQUAL) {
                 if (right.valType == Type.INT)
                     fn.addInstruction(new Instruction(cmpi));
                 else if (right.valType == Type.DOUBLE)
@@ -450,87 +637,104 @@ class Parser {
                     throw error(previous(), "cmp type error");
                 fn.addInstruction(new Instruction(not));
             }
+            Object folded = foldComparison(operator, expr, right);
             expr = new Expr.Binary(expr, operator, right);
             expr.valType = Type.BOOL;
+            if (folded != null)
+                emitConstant(fn, mark, expr, folded);
         }
 
         return expr;
     }
 
     private Expr term(SymbolTable symbolTable, Function fn) {
+        int mark = fn.getInstructionCount();
         Expr expr = factor(symbolTable, fn);
 
         while (match(MINUS, PLUS)) {
-            Token operator = previous();
+            TokenType operator = tokens.type(previous());
             Expr right = factor(symbolTable, fn);
             if (expr.valType != right.valType)
-                throw error(peek(), "term type err");
-            if (operator.type == PLUS) {
+                throw error(current, "term type err");
+            if (operator == PLUS) {
                 if (right.valType == Type.INT)
                     fn.addInstruction(new Instruction(addi));
                 else if (right.valType == Type.DOUBLE)
                     fn.addInstruction(new Instruction(addf));
                 else
-                    throw error(peek(), "term type err");
+                    throw error(current, "term type err");
             } else { // MINUS
                 if (right.valType == Type.INT)
                     fn.addInstruction(new Instruction(subi));
                 else if (right.valType == Type.DOUBLE)
                     fn.addInstruction(new Instruction(subf));
                 else
-                    throw error(peek(), "term type err");
+                    throw error(current, "term type err");
             }
+            Object folded = foldArithmetic(operator, expr, right);
             expr = new Expr.Binary(expr, operator, right);
+            if (folded != null)
+                emitConstant(fn, mark, expr, folded);
         }
 
         return expr;
     }
 
     private Expr factor(SymbolTable symbolTable, Function fn) {
+        int mark = fn.getInstructionCount();
         Expr expr = as(symbolTable, fn);
 
         while (match(MUL, DIV)) {
-            Token operator = previous();
+            TokenType operator = tokens.type(previous());
             Expr right = as(symbolTable, fn);
             if (expr.valType != right.valType)
-                throw error(peek(), "factor type err");
-            if (operator.type == MUL) {
+                throw error(current, "factor type err");
+            if (operator == MUL) {
                 if (right.valType == Type.INT)
                     fn.addInstruction(new Instruction(muli));
                 else if (right.valType == Type.DOUBLE)
                     fn.addInstruction(new Instruction(mulf));
                 else
-                    throw error(peek(), "factor type err");
+                    throw error(current, "factor type err");
             } else { // DIV
                 if (right.valType == Type.INT)
                     fn.addInstruction(new Instruction(divi));
                 else if (right.valType == Type.DOUBLE)
                     fn.addInstruction(new Instruction(divf));
                 else
-                    throw error(peek(), "factor type err");
+                    throw error(current, "factor type err");
             }
+            Object folded = foldArithmetic(operator, expr, right);
             expr = new Expr.Binary(expr, operator, right);
+            if (folded != null)
+                emitConstant(fn, mark, expr, folded);
         }
 
         return expr;
     }
 
     private Expr as(SymbolTable symbolTable, Function fn) {
+        int mark = fn.getInstructionCount();
         Expr expr = unary(symbolTable, fn);
 
         while (match(AS)) {
             if (check(IDENTIFIER)) {
-                String ty = peek().lexeme;
-                if (ty.equals("int")) {
-                    if (expr.valType == Type.DOUBLE)
+                if (tokens.lexemeEquals(current, "int")) {
+                    if (expr.valType == Type.DOUBLE) {
                         fn.addInstruction(new Instruction(ftoi));
+                        if (expr.val instanceof Double)
+                            emitConstant(fn, mark, expr, (long) (double) (Double) expr.val);
+                    }
                     expr.valType = Type.INT;
-                } else if (ty.equals("double")) {
-                    if (expr.valType == Type.INT)
+                } else if (tokens.lexemeEquals(current, "double")) {
+                    if (expr.valType == Type.INT) {
                         fn.addInstruction(new Instruction(itof));
+                        if (expr.val instanceof Long)
+                            emitConstant(fn, mark, expr, (double) (long) (Long) expr.val);
+                    }
                     expr.valType = Type.DOUBLE;
                 } else {
-                    throw error(peek(), "as_expr ty must be int or double");
+                    throw error(current, "as_expr ty must be int or double");
                 }
                 advance();
             }
@@ -541,23 +745,29 @@ class Parser {
 
     private Expr unary(SymbolTable symbolTable, Function fn) {
         if (match(MINUS)) {
-            Token operator = previous();
+            TokenType operator = tokens.type(previous());
+            int mark = fn.getInstructionCount();
             Expr right = unary(symbolTable, fn);
             if (right.valType == Type.INT)
                 fn.addInstruction(new Instruction(negi));
             else if (right.valType == Type.DOUBLE)
                 fn.addInstruction(new Instruction(negf));
             else
-                throw error(peek(), "unary type err");
-            return new Expr.Unary(operator, right);
+                throw error(current, "unary type err");
+            Expr expr = new Expr.Unary(operator, right);
+            if (right.val instanceof Long)
+                emitConstant(fn, mark, expr, -(Long) right.val);
+            else if (right.val instanceof Double)
+                emitConstant(fn, mark, expr, -(Double) right.val);
+            return expr;
         }
 
         return call(symbolTable, fn);
     }
 
     private Expr call(SymbolTable symbolTable, Function fn) {
-        if (peek().type == IDENTIFIER) {
-            String name = peek().lexeme;
+        if (peek() == IDENTIFIER) {
+            String name = tokens.lexeme(current);
             switch (name) {
                 case "getint":
                     advance();
@@ -632,23 +842,26 @@ class Parser {
                     advance();
                     consume(LEFT_PAREN,
                             "Expect '(' after putchar.");
-                    if (peek().type == STRING)
+                    if (peek() == STRING)
                         primary(symbolTable, fn);
-                    else if (peek().type != UINT)
-                        throw error(peek(), "putstr param must be string or int");
+                    else if (peek() != UINT)
+                        throw error(current, "putstr param must be string or int");
                     consume(RIGHT_PAREN,
                             "Expect ')' after '('.");
                     fn.addInstruction(new Instruction(prints));
                     return new Expr.Call(Type.VOID);
             }
 
-            if (peekNext().type == LEFT_PAREN) {
+            if (peekNext() == LEFT_PAREN) {
                 advance(); advance();
                 Function pfn;
                 if (name.equals(fn.getName()))
                     pfn = fn;
-                else
+                else {
                     pfn = functionTable.getFunction(name);
+                    if (pfn == null || pfn.getFid() >= fidLimit)
+                        throw error(previous(), "function is not declared");
+                }
                 if (pfn.getReturnType() != Type.VOID)
                     fn.addInstruction(new Instruction(stackalloc, 1));
 
@@ -656,7 +869,7 @@ class Parser {
                 if (!check(RIGHT_PAREN)) {
                     do {
                         if (arguments.size() >= 255) {
-                            throw error(peek(), "Can't have more than 255 arguments.");
+                            throw error(current, "Can't have more than 255 arguments.");
                         }
                         arguments.add(expression(symbolTable, fn));
                     } while (match(COMMA));
@@ -665,7 +878,9 @@ class Parser {
                 consume(RIGHT_PAREN,
                         "Expect ')' after arguments.");
 
-                fn.addInstruction(new Instruction(call, pfn.getFid()));
+                int site = fn.addInstruction(new Instruction(call, pfn.getFid()));
+                if (fn.getRelocations() != null)
+                    fn.getRelocations().call(fn.getInstruction(site), name, pfn);
                 return new Expr.Call(pfn.getReturnType());
             }
         }
@@ -675,39 +890,46 @@ class Parser {
 
     private Expr primary(SymbolTable symbolTable, Function fn) {
         if (match(UINT)) {
-            fn.addInstruction(new Instruction(push, (long) previous().literal));
-            return new Expr.Literal(previous());
+            fn.addInstruction(new Instruction(push, tokens.longValue(previous())));
+            return new Expr.Literal(tokens.type(previous()), tokens.literal(previous()));
         } else if (match(DOUBLE)) {
-            fn.addInstruction(new Instruction(push, (double) previous().literal));
-            return new Expr.Literal(previous());
+            fn.addInstruction(new Instruction(push, tokens.doubleValue(previous())));
+            return new Expr.Literal(tokens.type(previous()), tokens.literal(previous()));
         } else if (match(CHAR)) {
-            fn.addInstruction(new Instruction(push, (char) previous().literal));
-            return new Expr.Literal(previous());
+            fn.addInstruction(new Instruction(push, tokens.longValue(previous())));
+            return new Expr.Literal(CHAR, tokens.longValue(previous()));
         } else if (match(STRING)) {
-            String value = (String) previous().literal;
-            Variable var = new Variable("", Kind.GLOBAL, Type.STRING,
-                    value.length(), nextGlobalOffset++, true);
-            var.setValue(value);
-            SymbolTable globals = symbolTable.getGlobal();
-            globals.addVar(var);
-            fn.addInstruction(new Instruction(push, var.getAddr()));
-            return new Expr.Literal(previous());
+            Variable var = pooled != null ? pooled.get(previous()) : null;
+            if (var == null)
+                var = poolString(symbolTable.getGlobal(), tokens.stringValue(previous()));
+            int site = fn.addInstruction(new Instruction(push, var.getAddr()));
+            if (fn.getRelocations() != null)
+                fn.getRelocations().string(fn.getInstruction(site), var.getValue());
+            return new Expr.Literal(tokens.type(previous()), tokens.literal(previous()));
         }
 
         if (match(IDENTIFIER)) {
-            String name = previous().lexeme;
-            Variable var = symbolTable.getVar(name);
+            String name = tokens.lexeme(previous());
+            Variable var = getVar(symbolTable, name);
             if (var == null)
                 throw error(previous(), "this var cannot be used");
+            Object constValue = var.getConstValue();
+            if (constValue != null) {
+                if (fn.getRelocations() != null && var.getKind() == Kind.GLOBAL)
+                    fn.getRelocations().dependOn(name, var);
+                Expr expr = new Expr.Variable(name, var.getType());
+                emitConstant(fn, fn.getInstructionCount(), expr, constValue);
+                return expr;
+            }
             Kind kind = var.getKind();
             if (kind == Kind.GLOBAL)
-                fn.addInstruction(new Instruction(globa, var.getAddr()));
+                emitGlobal(fn, name, var);
             else if (kind == Kind.PARAM)
                 fn.addInstruction(new Instruction(arga, var.getAddr()));
             else if (kind == Kind.VAR)
                 fn.addInstruction(new Instruction(loca, var.getAddr()));
             fn.addInstruction(new Instruction(load64));
-            return new Expr.Variable(previous(), var.getType());
+            return new Expr.Variable(name, var.getType());
         }
 
         if (match(LEFT_PAREN)) {
@@ -716,7 +938,119 @@ class Parser {
             return new Expr.Grouping(expr);
         }
 
-        throw error(peek(), "Expect expression.");
+        throw error(current, "Expect expression.");
+    }
+
+    private void emitGlobal(Function fn, String name, Variable var) {
+        int site = fn.addInstruction(new Instruction(globa, var.getAddr()));
+        if (fn.getRelocations() != null)
+            fn.getRelocations().global(fn.getInstruction(site), name, var);
+    }
+
+    private Variable poolString(SymbolTable globals, String value) {
+        Variable var = globals.getString(value);
+        if (var == null) {
+            var = new Variable("", Kind.GLOBAL, Type.STRING,
+                    value.length(), nextGlobalOffset++, true);
+            var.setValue(value);
+            globals.addString(var);
+        }
+        return var;
+    }
+
+    // A redeclaration ends the compilation with status 64. In parallel mode
+    // that has to wait for the sequential rerun, which may stop earlier.
+    private void declare(SymbolTable symbolTable, Variable var, int name) {
+        if (symbolTable.isDeclared(var.getName())) {
+            if (quiet)
+                throw new ParseError();
+            error(name, "'" + var.getName() + "' is already declared");
+        }
+        symbolTable.addVar(var);
+    }
+
+    // Like SymbolTable.getVar, minus globals declared after the current body.
+    private Variable getVar(SymbolTable symbolTable, String name) {
+        Variable var = symbolTable.getVar(name);
+        if (var != null && var.getKind() == Kind.GLOBAL && var.getAddr() >= globalLimit)
+            return null;
+        return var;
+    }
+
+    private static boolean isConstant(Expr expr) {
+        return expr.val instanceof Long || expr.val instanceof Double;
+    }
+
+    // Replaces the code emitted since `mark` with a single push of `value`.
+    private void emitConstant(Function fn, int mark, Expr expr, Object value) {
+        fn.truncate(mark);
+        if (value instanceof Double)
+            fn.addInstruction(new Instruction(push, (double) (Double) value));
+        else
+            fn.addInstruction(new Instruction(push, (long) (Long) value));
+        expr.val = value;
+    }
+
+    // Folded value of `left op right`, or null when either side is not a
+    // compile-time constant or folding would hide a runtime fault.
+    private static Object foldArithmetic(TokenType operator, Expr left, Expr right) {
+        if (left.val instanceof Long && right.val instanceof Long) {
+            long l = (Long) left.val, r = (Long) right.val;
+            switch (operator) {
+                case PLUS: return l + r;
+                case MINUS: return l - r;
+                case MUL: return l * r;
+                case DIV:
+                    if (r == 0 || (l == Long.MIN_VALUE && r == -1))
+                        return null;
+                    return l / r;
+                default: return null;
+            }
+        }
+        if (left.val instanceof Double && right.val instanceof Double) {
+            double l = (Double) left.val, r = (Double) right.val;
+            switch (operator) {
+                case PLUS: return l + r;
+                case MINUS: return l - r;
+                case MUL: return l * r;
+                case DIV: return l / r;
+                default: return null;
+            }
+        }
+        return null;
+    }
+
+    // 1 or 0 for a comparison of two constants; NaN is left to the VM.
+    private static Object foldComparison(TokenType operator, Expr left, Expr right) {
+        int cmp;
+        if (left.val instanceof Long && right.val instanceof Long)
+            cmp = Long.compare((Long) left.val, (Long) right.val);
+        else if (left.val instanceof Double && right.val instanceof Double) {
+            double l = (Double) left.val, r = (Double) right.val;
+            if (Double.isNaN(l) || Double.isNaN(r))
+                return null;
+            cmp = l < r ? -1 : l > r ? 1 : 0;
+        } else
+            return null;
+        boolean result;
+        switch (operator) {
+            case LESS: result = cmp < 0; break;
+            case LESS_EQUAL: result = cmp <= 0; break;
+            case GREATER: result = cmp > 0; break;
+            case GREATER_EQUAL: result = cmp >= 0; break;
+            case EQUAL_EQUAL: result = cmp == 0; break;
+            case BANG_EQUAL: result = cmp != 0; break;
+            default: return null;
+        }
+        return result ? 1L : 0L;
+    }
+
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
+        }
+        return false;
     }
 
     private boolean match(TokenType... types) {
@@ -730,53 +1064,54 @@ class Parser {
         return false;
     }
 
-    private Token consume(TokenType type, String message) {
+    private int consume(TokenType type, String message) {
         if (check(type)) return advance();
 
-        throw error(peek(), message);
+        throw error(current, message);
     }
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return peek() == type;
     }
 
-    private Token advance() {
+    private int advance() {
         if (!isAtEnd()) current++;
+        if (source != null && current - tokens.base() >= WINDOW)
+            tokens.discardBefore(current - KEEP);
         return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return peek() == EOF;
     }
 
-    private Token peek() {
-        return tokens.get(current);
+    private TokenType peek() {
+        if (current >= tokens.size())
+            fill(current);
+        return tokens.type(current);
     }
 
-    private Token peekNext() {
+    private TokenType peekNext() {
+        if (current+1 >= tokens.size())
+            fill(current+1);
         if (current+1 >= tokens.size())
             throw error(previous(), "cannot peeknext");
-        return tokens.get(current+1);
+        return tokens.type(current+1);
     }
 
-    private Token previous() {
-        return tokens.get(current - 1);
+    private void fill(int index) {
+        while (index >= tokens.size() && source != null && source.fill()) {
+        }
     }
 
-    private void dfs(List<Integer>[] adj, boolean[] vis, int u, List<Integer> res) {
-        vis[u] = true;
-        if (adj[u].size() == 0)
-            res.add(u);
-        for (int i = 0; i < adj[u].size(); i++) {
-            if (!vis[adj[u].get(i)]) {
-                dfs(adj, vis, adj[u].get(i), res);
-            }
-        }
+    private int previous() {
+        return current - 1;
     }
 
-    private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+    private ParseError error(int token, String message) {
+        if (!quiet)
+            diagnostics.error(tokens.token(token), message);
         return new ParseError();
     }
 }
\ No newline at end of file
@@ -0,0 +1,157 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.InstructionType.*;
+
+// Local cleanups over one function's instruction list, run before Output.gen.
+//
+// Rewrites only ever delete instructions or swap a branch for another branch
+// to the same place, so branches are tracked by absolute target while the
+// rules run and turned back into relative offsets once at the end. A branch
+// whose target was deleted lands on the next surviving instruction.
+class Peephole {
+    enum Rule {
+        // nop
+        NOPS,
+        // not; brTrue X  ->  brFalse X   (and the other way round)
+        NOT_BRANCH,
+        // brTrue L; br X; L:  ->  brFalse X
+        BRANCH_OVER_BRANCH,
+        // br L; L:  ->  (nothing)
+        BRANCH_TO_NEXT,
+        // push/loca/arga/globa; pop  ->  (nothing)
+        PUSH_POP;
+
+        static EnumSet<Rule> parse(String list) {
+            EnumSet<Rule> rules = EnumSet.noneOf(Rule.class);
+            for (String name : list.split(","))
+                rules.add(valueOf(name.trim().toUpperCase().replace('-', '_')));
+            return rules;
+        }
+    }
+
+    private final EnumSet<Rule> rules;
+
+    private Instruction[] code;
+    private int[] target;
+    private boolean[] removed;
+    private boolean[] isTarget;
+    private int n;
+
+    Peephole(EnumSet<Rule> rules) {
+        this.rules = rules;
+    }
+
+    // Returns how many instructions were removed from `fn`.
+    int run(Function fn) {
+        List<Instruction> list = fn.getInstructionList();
+        n = list.size();
+        code = list.toArray(new Instruction[0]);
+        target = new int[n];
+        removed = new boolean[n];
+        isTarget = new boolean[n + 1];
+        for (int i = 0; i < n; i++) {
+            if (code[i].isBr())
+                target[i] = i + 1 + (int) code[i].i64;
+        }
+
+        int before = n;
+        boolean changed = true;
+        while (changed) {
+            markTargets();
+            changed = false;
+            for (int i = next(-1); i < n; i = next(i))
+                changed |= rewrite(i);
+        }
+
+        int kept = relocate(list);
+        code = null;
+        return before - kept;
+    }
+
+    private boolean rewrite(int i) {
+        InstructionType type = code[i].getType();
+        int j = next(i);
+
+        if (type == nop && rules.contains(Rule.NOPS)) {
+            removed[i] = true;
+            return true;
+        }
+        if (type == br && rules.contains(Rule.BRANCH_TO_NEXT) && resolve(target[i]) == j) {
+            removed[i] = true;
+            return true;
+        }
+        if (j >= n || isTarget[j])
+            return false;
+        InstructionType nextType = code[j].getType();
+
+        if (type == not && rules.contains(Rule.NOT_BRANCH)
+                && (nextType == brTrue || nextType == brFalse)) {
+            removed[i] = true;
+            code[j] = new Instruction(nextType == brTrue ? brFalse : brTrue, 0);
+            return true;
+        }
+        if ((type == brTrue || type == brFalse) && nextType == br
+                && rules.contains(Rule.BRANCH_OVER_BRANCH) && resolve(target[i]) == next(j)) {
+            removed[i] = true;
+            code[j] = new Instruction(type == brTrue ? brFalse : brTrue, 0);
+            return true;
+        }
+        if ((type == push || type == loca || type == arga || type == globa) && nextType == pop
+                && rules.contains(Rule.PUSH_POP)) {
+            removed[i] = true;
+            removed[j] = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void markTargets() {
+        Arrays.fill(isTarget, false);
+        for (int i = next(-1); i < n; i = next(i)) {
+            if (code[i].isBr())
+                isTarget[resolve(target[i])] = true;
+        }
+    }
+
+    private int next(int i) {
+        i++;
+        while (i < n && removed[i])
+            i++;
+        return i;
+    }
+
+    private int resolve(int t) {
+        while (t < n && removed[t])
+            t++;
+        return t;
+    }
+
+    private int relocate(List<Instruction> list) {
+        int[] index = new int[n + 1];
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            index[i] = kept;
+            if (!removed[i])
+                kept++;
+        }
+        index[n] = kept;
+
+        List<Instruction> out = new ArrayList<>(kept);
+        for (int i = 0; i < n; i++) {
+            if (removed[i])
+                continue;
+            Instruction ins = code[i];
+            if (ins.isBr())
+                ins.i64 = index[target[i]] - index[i] - 1;
+            out.add(ins);
+        }
+        list.clear();
+        list.addAll(out);
+        return kept;
+    }
+}
@@ -1,7 +1,29 @@
 package com.craftinginterpreters.lox;
 
 class Program {
-    private int magic = 0x72303b3e;
+    static final int MAGIC = 0x72303b3e;
+    // The low byte of the version is the layout revision; the bits above it
+    // flag optional parts that readers of the plain layout can ignore.
+    //
+    // FLAG_INDEX: the functions are followed by an index, so a loader can
+    // find function N without decoding the ones before it:
+    //
+    //   u32 count
+    //   count x { u32 fid, u64 offset, u32 length }   _start first, by image order
+    //   u64 offset of `count`                          last 8 bytes of the file
+    //
+    // where offset and length cover the function's header and body.
+    static final int FLAG_INDEX = 0x100;
+    // FLAG_MAX_STACK: every function header carries a u32 max_stack between
+    // loca and count, the most operand stack slots the function uses (see
+    // StackDepth), so an executor can check a frame's room once on entry.
+    static final int FLAG_MAX_STACK = 0x200;
+    // FLAG_SUPER: the code may use the extended instruction set (see
+    // InstructionType.isExtended), which readers of the plain layout cannot
+    // run; the flag makes such images a different version.
+    static final int FLAG_SUPER = 0x400;
+
+    private int magic = MAGIC;
     private int version = 0x00000001;
     private SymbolTable globals;
     private FunctionTable functions;
@@ -28,7 +50,7 @@ class Program {
         fnName.setAddr(nextGlobalOffset++);
         fnName.setSize(6);
         fnName.setValue("_start");
-        globals.addVar(fnName);
+        globals.addString(fnName);
     }
 
     Function getFunction(String name) {
@@ -43,6 +65,10 @@ class Program {
         return version;
     }
 
+    void addFlags(int flags) {
+        version |= flags;
+    }
+
     public SymbolTable getGlobals() {
         return globals;
     }
@@ -58,4 +84,12 @@ class Program {
     public int getNextGlobalOffset() {
         return nextGlobalOffset;
     }
+
+    void setNextGlobalOffset(int nextGlobalOffset) {
+        this.nextGlobalOffset = nextGlobalOffset;
+    }
+
+    int allocateGlobal() {
+        return nextGlobalOffset++;
+    }
 }
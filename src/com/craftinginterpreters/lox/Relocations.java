@@ -0,0 +1,80 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// What a compiled function body took from outside itself: every instruction
+// whose operand is a global slot or a fid, by the symbol it was resolved
+// from, and a signature for each global and function it used. The code is
+// valid in another build exactly when every signature still resolves the
+// same way there; the sites are then patched to the new slots and fids.
+class Relocations {
+    static final byte GLOBAL = 0;
+    static final byte STRING = 1;
+    static final byte CALL = 2;
+
+    final List<Instruction> sites = new ArrayList<>();
+    final List<String> symbols = new ArrayList<>();
+    private byte[] kinds = new byte[8];
+    // "g name" or "f name" -> signature, in first-use order
+    final Map<String, String> dependencies = new LinkedHashMap<>();
+
+    void global(Instruction site, String name, Variable var) {
+        add(site, GLOBAL, name);
+        dependOn(name, var);
+    }
+
+    void string(Instruction site, String value) {
+        add(site, STRING, value);
+    }
+
+    void call(Instruction site, String name, Function fn) {
+        add(site, CALL, name);
+        dependencies.put("f " + name, signature(fn));
+    }
+
+    // A global the body used without an operand for it, such as a folded
+    // constant.
+    void dependOn(String name, Variable var) {
+        dependencies.put("g " + name, signature(var));
+    }
+
+    byte kind(int k) {
+        return kinds[k];
+    }
+
+    // Where each site now sits in `code`, or -1 for one an optimization
+    // deleted.
+    int[] sitesIn(List<Instruction> code) {
+        Map<Instruction, Integer> index = new IdentityHashMap<>(code.size());
+        for (int i = 0; i < code.size(); i++)
+            index.put(code.get(i), i);
+        int[] at = new int[sites.size()];
+        for (int k = 0; k < at.length; k++) {
+            Integer i = index.get(sites.get(k));
+            at[k] = i != null ? i : -1;
+        }
+        return at;
+    }
+
+    static String signature(Variable var) {
+        return var.getType() + (var.isConst() ? " const " : " ") + var.getConstValue();
+    }
+
+    static String signature(Function fn) {
+        return fn.getReturnType() + " " + fn.getParamTypes();
+    }
+
+    void add(Instruction site, byte kind, String symbol) {
+        int k = sites.size();
+        if (k == kinds.length)
+            kinds = Arrays.copyOf(kinds, k * 2);
+        kinds[k] = kind;
+        sites.add(site);
+        symbols.add(symbol);
+    }
+}
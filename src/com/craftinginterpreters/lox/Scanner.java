@@ -1,46 +1,60 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 import static com.craftinginterpreters.lox.TokenType.*; 
 
-class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+class Scanner implements TokenSource {
+  private static final int BATCH = 64;
+
+  private final Source source;
+  private final Diagnostics diagnostics;
+  private TokenBuffer tokens;
+  private boolean done = false;
   private int start = 0;
   private int current = 0;
   private int line = 1;
-  private static final Map<String, TokenType> keywords;
-
-  static {
-    keywords = new HashMap<>();
-    keywords.put("fn",       FN);
-    keywords.put("let",      LET);
-    keywords.put("const",    CONST);
-    keywords.put("as",       AS);
-    keywords.put("while",    WHILE);
-    keywords.put("if",       IF);
-    keywords.put("else",     ELSE);
-    keywords.put("return",   RETURN);
-    keywords.put("break",    BREAK);
-    keywords.put("continue", CONTINUE);
-  }
+
   Scanner(String source) {
+    this(Source.of(source), new Diagnostics());
+  }
+  Scanner(Source source, Diagnostics diagnostics) {
+    // Roughly one token per five bytes of source.
+    this(source, new TokenBuffer(source, Math.max(256, source.length() / 5)), diagnostics);
+  }
+  Scanner(Source source, TokenBuffer tokens, Diagnostics diagnostics) {
     this.source = source;
+    this.tokens = tokens;
+    this.diagnostics = diagnostics;
   }
-  List<Token> scanTokens() {
+  TokenBuffer scanTokens() {
     while (!isAtEnd()) {
       // We are at the beginning of the next lexeme.
       start = current;
       scanToken();
     }
 
-    tokens.add(new Token(EOF, "", null, line));
+    tokens.add(EOF, current, 0, line);
+    done = true;
     return tokens;
   }
+  @Override
+  public boolean fill() {
+    return scan(tokens, BATCH);
+  }
+  // Scans until `count` more tokens are in `into` or the source runs out.
+  boolean scan(TokenBuffer into, int count) {
+    if (done) return false;
+    tokens = into;
+    int target = tokens.size() + count;
+    while (tokens.size() < target && !isAtEnd()) {
+      start = current;
+      scanToken();
+    }
+    if (isAtEnd() && tokens.size() < target) {
+      tokens.add(EOF, current, 0, line);
+      done = true;
+    }
+    return true;
+  }
   private void scanToken() {
     char c = advance();
     switch (c) {
@@ -60,7 +74,7 @@ class Scanner {
         if (match('=')) {
           addToken(BANG_EQUAL);
         } else {
-          Lox.error(line, "Unexpected character.");
+          diagnostics.error(line, "Unexpected character.");
         }
         break;
       case '=':
@@ -101,7 +115,7 @@ class Scanner {
         } else if (isAlpha(c)) {
           identifier();
         } else {
-          Lox.error(line, "Unexpected character.");
+          diagnostics.error(line, "Unexpected character.");
         }
         break;
     }
@@ -109,10 +123,30 @@ class Scanner {
   private void identifier() {
     while (isAlphaNumeric(peek())) advance();
 
-    String text = source.substring(start, current);
-    TokenType type = keywords.get(text);
-    if (type == null) type = IDENTIFIER;
-    addToken(type);
+    addToken(identifierType());
+  }
+  private TokenType identifierType() {
+    switch (source.charAt(start)) {
+      case 'a': return checkKeyword(1, "s", AS);
+      case 'b': return checkKeyword(1, "reak", BREAK);
+      case 'c':
+        if (checkKeyword(1, "onst", CONST) == CONST) return CONST;
+        return checkKeyword(1, "ontinue", CONTINUE);
+      case 'e': return checkKeyword(1, "lse", ELSE);
+      case 'f': return checkKeyword(1, "n", FN);
+      case 'i': return checkKeyword(1, "f", IF);
+      case 'l': return checkKeyword(1, "et", LET);
+      case 'r': return checkKeyword(1, "eturn", RETURN);
+      case 'w': return checkKeyword(1, "hile", WHILE);
+    }
+    return IDENTIFIER;
+  }
+  private TokenType checkKeyword(int begin, String rest, TokenType type) {
+    if (current - start != begin + rest.length()) return IDENTIFIER;
+    for (int i = 0; i < rest.length(); i++) {
+      if (source.charAt(start + begin + i) != rest.charAt(i)) return IDENTIFIER;
+    }
+    return type;
   }
   private void number() {
     // Look for a fractional part.
@@ -130,46 +164,60 @@ class Scanner {
           } else
             current = pos;
         }
-        addToken(DOUBLE,
-                Double.parseDouble(source.substring(start, current)));
+        tokens.addDouble(DOUBLE, start, current - start, line,
+                Double.parseDouble(source.text(start, current)));
       } else {
-        addToken(UINT,
-                Long.parseLong(source.substring(start, current)));
+        tokens.addLong(UINT, start, current - start, line,
+                Long.parseLong(source.text(start, current)));
       }
   }
   private void string() {
+    // Escapes are ASCII, so the text between them can be decoded in one go.
     StringBuilder sb = new StringBuilder();
+    int from = current;
     while (peek() != '"' && !isAtEnd()) {
       if (peek() == '\\') {
         if (isEscape(peekNext())) {
+          sb.append(source.text(from, current));
           sb.append(getEscape(peekNext()));
           advance(); advance();
+          from = current;
         } else {
-          Lox.error(line, "string literal err");
+          diagnostics.error(line, "string literal err");
           return;
         }
       } else {
-        sb.append(peek());
         advance();
       }
     }
 
     if (isAtEnd()) {
-      Lox.error(line, "Unterminated string.");
+      diagnostics.error(line, "Unterminated string.");
       return;
     }
+    sb.append(source.text(from, current));
 
     // The closing ".
     advance();
 
     // Trim the surrounding quotes.
-    addToken(STRING, sb.toString());
+    tokens.addString(STRING, start, current - start, line, sb.toString());
   }
   private void character() {
     char value = 0;
     if (isCharRegular(peek())) {
-      value = peek();
-      advance();
+      int from = current;
+      value = advance();
+      if (value >= 0x80) {
+        // Over raw bytes a non-ASCII character spans several of them.
+        while (peek() >= 0x80) advance();
+        String text = source.text(from, current);
+        if (text.length() != 1) {
+          diagnostics.error(line, "char literal err");
+          return;
+        }
+        value = text.charAt(0);
+      }
     } else {
       if (peek() == '\\' && isEscape(peekNext())) {
         value = getEscape(peekNext());
@@ -177,9 +225,9 @@ class Scanner {
       }
     }
     if (match('\'')) {
-      addToken(CHAR, value);
+      tokens.addLong(CHAR, start, current - start, line, value);
     } else {
-      Lox.error(line, "char literal err");
+      diagnostics.error(line, "char literal err");
     }
   }
   private boolean match(char expected) {
@@ -219,7 +267,7 @@ class Scanner {
       case 'n': return '\n';
       case 'r': return '\r';
       case 't': return '\t';
-      default: Lox.error(line, "getEscape err");
+      default: diagnostics.error(line, "getEscape err");
     }
     return 0;
   }
@@ -235,11 +283,6 @@ class Scanner {
   }
 
   private void addToken(TokenType type) {
-    addToken(type, null);
-  }
-
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+    tokens.add(type, start, current - start, line);
   }
 }
\ No newline at end of file
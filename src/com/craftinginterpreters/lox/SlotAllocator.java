@@ -0,0 +1,144 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static com.craftinginterpreters.lox.InstructionType.*;
+
+// Packs a function's locals onto as few loca slots as their live ranges allow.
+//
+// The parser gives every let/const its own slot. Here each slot gets one live
+// interval over instruction indices and the intervals are colored greedily in
+// order of their start, which is optimal for interval graphs.
+//
+// An interval normally runs from the store that first writes the local to its
+// last use. When that store does not dominate every use, the local may be read
+// before it is written and must still see the zero the VM puts there on call,
+// so the interval starts at 0 instead, where no other slot can have been used
+// yet. A loop holding a use but not the store (or the other way round) is
+// covered whole, since the value has to survive its back edge.
+class SlotAllocator {
+    // Rewrites the loca operands of `fn` and returns its new slot count.
+    int run(Function fn) {
+        List<Instruction> code = fn.getInstructionList();
+        int slots = fn.getLocaSlots();
+        if (slots == 0)
+            return 0;
+
+        // every loca of each slot, in instruction order (CSR)
+        int[] useStart = new int[slots + 1];
+        for (Instruction ins : code) {
+            if (ins.getType() == loca)
+                useStart[(int) ins.i64 + 1]++;
+        }
+        for (int k = 0; k < slots; k++)
+            useStart[k + 1] += useStart[k];
+        int[] uses = new int[useStart[slots]];
+        int[] fill = Arrays.copyOf(useStart, slots);
+        for (int i = 0; i < code.size(); i++) {
+            Instruction ins = code.get(i);
+            if (ins.getType() == loca)
+                uses[fill[(int) ins.i64]++] = i;
+        }
+
+        ControlFlowGraph cfg = new ControlFlowGraph(fn);
+        int[] start = new int[slots];
+        int[] end = new int[slots];
+        for (int k = 0; k < slots; k++) {
+            if (useStart[k] == useStart[k + 1]) {
+                start[k] = -1;
+                continue;
+            }
+            int first = uses[useStart[k]];
+            int def = definingStore(code, first, useStart[k + 1] - useStart[k] > 1 ? uses[useStart[k] + 1] : code.size());
+            int defBlock = def >= 0 ? cfg.getBlockOf(def) : -1;
+            for (int u = useStart[k] + 1; def >= 0 && u < useStart[k + 1]; u++) {
+                if (!cfg.dominates(defBlock, cfg.getBlockOf(uses[u])))
+                    def = -1;
+            }
+            if (def < 0)
+                defBlock = -1;
+            start[k] = def >= 0 ? def : 0;
+            end[k] = uses[useStart[k + 1] - 1];
+            for (int u = useStart[k]; u < useStart[k + 1]; u++)
+                cover(cfg, cfg.getBlockOf(uses[u]), defBlock, start, end, k);
+            for (int h = defBlock >= 0 ? cfg.getLoopOf(defBlock) : -1; h >= 0; h = cfg.getLoopParent(h)) {
+                if (holdsAll(cfg, h, uses, useStart[k], useStart[k + 1]))
+                    break;
+                widen(cfg, h, start, end, k);
+            }
+        }
+
+        int[] color = new int[slots];
+        int used = color(start, end, color);
+        for (Instruction ins : code) {
+            if (ins.getType() == loca)
+                ins.i64 = color[(int) ins.i64];
+        }
+        fn.setLocaSlots(used);
+        return used;
+    }
+
+    // The store64 that writes through the address pushed at `at`, or -1 if the
+    // local is read first. A right-hand side cannot contain another store, so
+    // that is the first store64 after `at`, and it has to come before the
+    // local's next use at `next`.
+    private static int definingStore(List<Instruction> code, int at, int next) {
+        if (at + 1 < code.size() && code.get(at + 1).getType() == load64)
+            return -1;
+        for (int i = at + 1; i < next; i++) {
+            if (code.get(i).getType() == store64)
+                return i;
+        }
+        return -1;
+    }
+
+    // Widens slot k over every loop around `block` that does not also hold
+    // `other` (-1 when there is no such block).
+    private static void cover(ControlFlowGraph cfg, int block, int other, int[] start, int[] end, int k) {
+        for (int h = cfg.getLoopOf(block); h >= 0; h = cfg.getLoopParent(h)) {
+            if (other >= 0 && cfg.inLoop(other, h))
+                break;
+            widen(cfg, h, start, end, k);
+        }
+    }
+
+    private static void widen(ControlFlowGraph cfg, int header, int[] start, int[] end, int k) {
+        start[k] = Math.min(start[k], cfg.getBlockStart(header));
+        end[k] = Math.max(end[k], cfg.getBlockEnd(cfg.getLoopLast(header)) - 1);
+    }
+
+    private static boolean holdsAll(ControlFlowGraph cfg, int header, int[] uses, int from, int to) {
+        for (int u = from; u < to; u++) {
+            if (!cfg.inLoop(cfg.getBlockOf(uses[u]), header))
+                return false;
+        }
+        return true;
+    }
+
+    // Lowest free color for each live interval, taken in order of start;
+    // returns the number of colors used.
+    private static int color(int[] start, int[] end, int[] color) {
+        int slots = start.length;
+        Integer[] order = new Integer[slots];
+        for (int k = 0; k < slots; k++)
+            order[k] = k;
+        Arrays.sort(order, (a, b) -> start[a] != start[b] ? Integer.compare(start[a], start[b]) : Integer.compare(a, b));
+
+        // active intervals by end, packed as end << 32 | color
+        PriorityQueue<Long> active = new PriorityQueue<>();
+        PriorityQueue<Integer> free = new PriorityQueue<>();
+        int colors = 0;
+        for (int k : order) {
+            if (start[k] < 0)
+                continue;
+            while (!active.isEmpty() && (active.peek() >> 32) < start[k])
+                free.add((int) (active.poll() & 0xffffffffL));
+            int c = free.isEmpty() ? colors++ : free.poll();
+            color[k] = c;
+            active.add((long) end[k] << 32 | c);
+        }
+        return colors;
+    }
+}
@@ -0,0 +1,82 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+// Program text as seen by the Scanner. The byte-backed form lexes straight
+// over a (possibly memory-mapped) buffer; only lexemes and literal values are
+// ever decoded, and only when asked for.
+abstract class Source {
+    abstract int length();
+
+    abstract char charAt(int index);
+
+    abstract String text(int start, int end);
+
+    static Source of(String text) {
+        return new StringSource(text);
+    }
+
+    static Source of(ByteBuffer bytes, Charset charset) {
+        return new ByteSource(bytes, charset);
+    }
+
+    private static final class StringSource extends Source {
+        private final String text;
+
+        StringSource(String text) {
+            this.text = text;
+        }
+
+        @Override
+        int length() {
+            return text.length();
+        }
+
+        @Override
+        char charAt(int index) {
+            return text.charAt(index);
+        }
+
+        @Override
+        String text(int start, int end) {
+            return text.substring(start, end);
+        }
+    }
+
+    // Every byte reads as one char; anything outside ASCII only ever shows up
+    // inside string/char literals and comments, where text() decodes it with
+    // the same charset the whole file used to be decoded with.
+    private static final class ByteSource extends Source {
+        private final ByteBuffer bytes;
+        private final Charset charset;
+        private final int length;
+
+        ByteSource(ByteBuffer bytes, Charset charset) {
+            this.bytes = bytes;
+            this.charset = charset;
+            this.length = bytes.limit();
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        char charAt(int index) {
+            return (char) (bytes.get(index) & 0xff);
+        }
+
+        @Override
+        String text(int start, int end) {
+            if (bytes.hasArray())
+                return new String(bytes.array(), bytes.arrayOffset() + start, end - start, charset);
+            byte[] range = new byte[end - start];
+            ByteBuffer view = bytes.duplicate();
+            view.position(start);
+            view.get(range);
+            return new String(range, charset);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.InstructionType.*;
+
+// Operand stack depth before every instruction of one function, found by
+// abstract interpretation: starting from 0 at the entry, each instruction
+// moves the depth by the stack effect of its InstructionType, and every
+// path reaching an instruction must bring the same depth. A function passes
+// when no instruction pops more than is there and all joins agree; its
+// maximum is then exact, which is what Program.FLAG_MAX_STACK records.
+//
+// Works on both code being emitted (relative branch operands, with an
+// implicit ret past the end) and a decoded Image.Code.
+class StackDepth {
+    // See InstructionType.getPops and getPushes.
+    static final int VARIABLE = -1;
+
+    // Return and param slots of the function `fid`, or -1 if there is none.
+    interface Signatures {
+        int returnSlots(int fid);
+
+        int paramSlots(int fid);
+    }
+
+    private final InstructionType[] types;
+    // Operands, br* targets as absolute indices.
+    private final long[] args;
+    private final Signatures signatures;
+    // Before each instruction; -1 where it is unreachable.
+    private final int[] depth;
+    private int max;
+    private String error;
+
+    static StackDepth of(List<Instruction> code, Signatures signatures) {
+        int n = code.size();
+        InstructionType[] types = new InstructionType[n];
+        long[] args = new long[n];
+        for (int i = 0; i < n; i++) {
+            Instruction ins = code.get(i);
+            types[i] = ins.getType();
+            args[i] = ins.isBr() ? ControlFlowGraph.target(ins, i) : ins.i64;
+        }
+        return new StackDepth(types, args, signatures);
+    }
+
+    static StackDepth of(Image.Code fn, Signatures signatures) {
+        int n = fn.ops.length;
+        InstructionType[] types = new InstructionType[n];
+        for (int i = 0; i < n; i++)
+            types[i] = InstructionType.fromNum(fn.ops[i]);
+        return new StackDepth(types, fn.args, signatures);
+    }
+
+    static Signatures of(Image image) {
+        return new Signatures() {
+            @Override
+            public int returnSlots(int fid) {
+                Image.Code callee = image.getFunction(fid);
+                return callee == null ? -1 : callee.returnSlots;
+            }
+
+            @Override
+            public int paramSlots(int fid) {
+                Image.Code callee = image.getFunction(fid);
+                return callee == null ? -1 : callee.paramSlots;
+            }
+        };
+    }
+
+    private StackDepth(InstructionType[] types, long[] args, Signatures signatures) {
+        this.types = types;
+        this.args = args;
+        this.signatures = signatures;
+        this.depth = new int[types.length];
+        Arrays.fill(depth, -1);
+        run();
+    }
+
+    boolean isValid() {
+        return error == null;
+    }
+
+    // What made the function fail, with the instruction index; null if it
+    // passed.
+    String getError() {
+        return error;
+    }
+
+    // The deepest the operand stack gets, counting a call's return slots and
+    // arguments until it returns.
+    int getMax() {
+        return max;
+    }
+
+    int getDepth(int instruction) {
+        return depth[instruction];
+    }
+
+    // Slots instruction i takes off the stack; -1 if that is not known.
+    int pops(int i) {
+        return pops(types[i], args[i], signatures);
+    }
+
+    // Slots instruction i leaves on the stack; -1 if that is not known.
+    int pushes(int i) {
+        return pushes(types[i], args[i], signatures);
+    }
+
+    static int pops(InstructionType type, long arg, Signatures signatures) {
+        if (type == null)
+            return -1;
+        if (type.getPops() != VARIABLE)
+            return type.getPops();
+        if (type == popn)
+            return arg < 0 || arg > Integer.MAX_VALUE ? -1 : (int) arg;
+        if (type == call) {
+            int returns = signatures.returnSlots((int) arg);
+            int params = signatures.paramSlots((int) arg);
+            return returns < 0 || params < 0 ? -1 : returns + params;
+        }
+        return -1;
+    }
+
+    static int pushes(InstructionType type, long arg, Signatures signatures) {
+        if (type == null)
+            return -1;
+        if (type.getPushes() != VARIABLE)
+            return type.getPushes();
+        if (type == stackalloc)
+            return arg < 0 || arg > Integer.MAX_VALUE ? -1 : (int) arg;
+        if (type == call)
+            return signatures.returnSlots((int) arg);
+        return -1;
+    }
+
+    private void run() {
+        int n = types.length;
+        if (n == 0)
+            return;
+        int[] work = new int[n];
+        int top = 0;
+        depth[0] = 0;
+        work[top++] = 0;
+        while (top > 0 && error == null) {
+            int i = work[--top];
+            int pops = pops(i);
+            int pushes = pushes(i);
+            if (pops < 0 || pushes < 0) {
+                error = "at " + i + ": unknown stack effect of " + types[i];
+                return;
+            }
+            if (pops > depth[i]) {
+                error = "at " + i + ": " + types[i] + " pops " + pops + " of " + depth[i];
+                return;
+            }
+            long after = (long) depth[i] - pops + pushes;
+            if (after > Integer.MAX_VALUE) {
+                error = "at " + i + ": stack too deep";
+                return;
+            }
+            max = (int) Math.max(max, after);
+            InstructionType type = types[i];
+            if (type.isBranch()) {
+                if (args[i] < 0 || args[i] > n) {
+                    error = "at " + i + ": branch leaves the function";
+                    return;
+                }
+                top = flow(i, (int) args[i], (int) after, work, top);
+            }
+            if (type != br && type != ret)
+                top = flow(i, i + 1, (int) after, work, top);
+        }
+    }
+
+    // Control passes from `from` to `to` with `after` slots on the stack.
+    // Index n is past the end, where the loader's ret is.
+    private int flow(int from, int to, int after, int[] work, int top) {
+        if (to == types.length)
+            return top;
+        if (depth[to] < 0) {
+            depth[to] = after;
+            work[top++] = to;
+        } else if (depth[to] != after) {
+            error = "at " + to + ": stack depth " + after + " from " + from + " but " + depth[to] + " on another path";
+        }
+        return top;
+    }
+}
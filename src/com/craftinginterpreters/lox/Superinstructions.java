@@ -0,0 +1,228 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.InstructionType.*;
+
+// Picks the extended instructions of Program.FLAG_SUPER for one function as
+// it is written out:
+//
+//   loca|arga|globa n; load64                  ->  loadl|loada|loadg n
+//   loca|arga|globa n; <value>; store64        ->  <value>; storel|storea|storeg n
+//   loadl n; push c; addi|subi; storel n       ->  incl n, +-c
+//   cmpi; [setLt|setGt|not]...; brTrue|brFalse X
+//                                              ->  br<cond>i X
+//
+// where a compare-and-branch may also absorb the `brTrue L; br X; L:` shape
+// of an unoptimized loop test by branching on the opposite condition. The
+// instructions of a fusion after its first must not be branch targets; the
+// <value> of a store is straight-line code whose net effect is one slot.
+// Like Peephole, rewrites only delete instructions or replace them in
+// place, and a branch whose target was deleted lands on the next one kept.
+// The Function itself is left alone, since its code may be shared with
+// BodyCache and ObjectFile.
+class Superinstructions {
+    private final StackDepth.Signatures signatures;
+
+    private Instruction[] code;
+    private int[] target;
+    private boolean[] removed;
+    private boolean[] isTarget;
+    private int n;
+
+    Superinstructions(StackDepth.Signatures signatures) {
+        this.signatures = signatures;
+    }
+
+    // `list` with the fusions applied, as a new list.
+    List<Instruction> select(List<Instruction> list) {
+        n = list.size();
+        code = list.toArray(new Instruction[0]);
+        target = new int[n];
+        removed = new boolean[n];
+        isTarget = new boolean[n + 1];
+        for (int i = 0; i < n; i++) {
+            if (code[i].isBr())
+                target[i] = ControlFlowGraph.target(code[i], i);
+        }
+
+        markTargets();
+        for (int i = 0; i < n; i++)
+            fuseLoad(i);
+        for (int i = next(-1); i < n; i = next(i))
+            fuseStore(i);
+        markTargets();
+        for (int i = next(-1); i < n; i = next(i)) {
+            fuseIncrement(i);
+            fuseBranch(i);
+        }
+
+        List<Instruction> out = relocate();
+        code = null;
+        return out;
+    }
+
+    private void fuseLoad(int i) {
+        InstructionType type = code[i].getType();
+        if (type != loca && type != arga && type != globa)
+            return;
+        int j = i + 1;
+        if (j >= n || isTarget[j] || code[j].getType() != load64)
+            return;
+        code[i] = new Instruction(type == loca ? loadl : type == arga ? loada : loadg, code[i].i64);
+        removed[j] = true;
+    }
+
+    // Follows the address pushed at i until something pops it.
+    private void fuseStore(int i) {
+        InstructionType type = code[i].getType();
+        if (type != loca && type != arga && type != globa)
+            return;
+        int height = 1;
+        for (int j = next(i); j < n; j = next(j)) {
+            Instruction ins = code[j];
+            InstructionType t = ins.getType();
+            if (isTarget[j] || ins.isBr() || t == ret)
+                return;
+            int pops = StackDepth.pops(t, ins.i64, signatures);
+            int pushes = StackDepth.pushes(t, ins.i64, signatures);
+            if (pops < 0 || pushes < 0)
+                return;
+            if (pops >= height) {
+                if (t == store64 && height == 2) {
+                    code[j] = new Instruction(type == loca ? storel : type == arga ? storea : storeg, code[i].i64);
+                    removed[i] = true;
+                }
+                return;
+            }
+            height += pushes - pops;
+        }
+    }
+
+    private void fuseIncrement(int i) {
+        if (code[i].getType() != loadl)
+            return;
+        int j = next(i);
+        int k = next(j);
+        int m = next(k);
+        if (m >= n || isTarget[j] || isTarget[k] || isTarget[m])
+            return;
+        InstructionType op = code[k].getType();
+        if (code[j].getType() != push || code[j].isFloat() || op != addi && op != subi
+                || code[m].getType() != storel || code[m].i64 != code[i].i64)
+            return;
+        long c = op == addi ? code[j].i64 : -code[j].i64;
+        if (c < Integer.MIN_VALUE || c > Integer.MAX_VALUE || code[i].i64 < 0 || code[i].i64 > Integer.MAX_VALUE)
+            return;
+        code[i] = new Instruction(incl, code[i].i64 << 32 | c & 0xffffffffL);
+        removed[j] = removed[k] = removed[m] = true;
+    }
+
+    // Tracks the value on top as a function of the comparison's sign, to
+    // find for which signs the branch is taken.
+    private void fuseBranch(int i) {
+        if (code[i].getType() != cmpi)
+            return;
+        long[] value = {-1, 0, 1};
+        int j = next(i);
+        while (j < n && !isTarget[j]) {
+            InstructionType type = code[j].getType();
+            if (type != setLt && type != setGt && type != not)
+                break;
+            for (int s = 0; s < 3; s++) {
+                long v = value[s];
+                value[s] = type == setLt ? (v < 0 ? 1 : 0) : type == setGt ? (v > 0 ? 1 : 0) : (v == 0 ? 1 : 0);
+            }
+            j = next(j);
+        }
+        if (j >= n || isTarget[j])
+            return;
+        InstructionType branch = code[j].getType();
+        if (branch != brTrue && branch != brFalse)
+            return;
+        boolean[] taken = new boolean[3];
+        for (int s = 0; s < 3; s++)
+            taken[s] = (value[s] != 0) == (branch == brTrue);
+        int to = target[j];
+        int k = next(j);
+        boolean over = k < n && !isTarget[k] && code[k].getType() == br && resolve(to) == next(k);
+        if (over) {
+            for (int s = 0; s < 3; s++)
+                taken[s] = !taken[s];
+            to = target[k];
+        }
+        InstructionType fused = condition(taken);
+        if (fused == null)
+            return;
+        code[i] = new Instruction(fused, 0);
+        target[i] = to;
+        for (int r = next(i); r <= j; r = next(r))
+            removed[r] = true;
+        if (over)
+            removed[k] = true;
+    }
+
+    // The fused branch taken for lhs < rhs, ==, > as given; null if it is
+    // always or never taken.
+    private static InstructionType condition(boolean[] taken) {
+        boolean lt = taken[0];
+        boolean eq = taken[1];
+        boolean gt = taken[2];
+        if (lt && eq && gt || !lt && !eq && !gt)
+            return null;
+        if (lt && eq)
+            return brlei;
+        if (gt && eq)
+            return brgei;
+        if (lt && gt)
+            return brnei;
+        return lt ? brlti : gt ? brgti : breqi;
+    }
+
+    private void markTargets() {
+        Arrays.fill(isTarget, false);
+        for (int i = next(-1); i < n; i = next(i)) {
+            if (code[i].isBr())
+                isTarget[resolve(target[i])] = true;
+        }
+    }
+
+    private int next(int i) {
+        i++;
+        while (i < n && removed[i])
+            i++;
+        return i;
+    }
+
+    private int resolve(int t) {
+        while (t < n && removed[t])
+            t++;
+        return t;
+    }
+
+    // Branches are rebuilt rather than patched, so that `code`'s original
+    // instructions are never changed.
+    private List<Instruction> relocate() {
+        int[] index = new int[n + 1];
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            index[i] = kept;
+            if (!removed[i])
+                kept++;
+        }
+        index[n] = kept;
+
+        List<Instruction> out = new ArrayList<>(kept);
+        for (int i = 0; i < n; i++) {
+            if (removed[i])
+                continue;
+            Instruction ins = code[i];
+            if (ins.isBr())
+                ins = new Instruction(ins.getType(), index[resolve(target[i])] - index[i] - 1);
+            out.add(ins);
+        }
+        return out;
+    }
+}
@@ -1,20 +1,43 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 class SymbolTable {
     private SymbolTable parent;
+    private final Names names;
     private List<Variable> table = new ArrayList<>();
 
-    SymbolTable() {}
+    // Open-addressing map from name id to variable for this scope only;
+    // keys hold id + 1 so that 0 marks an empty slot.
+    private int[] keys = new int[8];
+    private Variable[] vars = new Variable[8];
+    private int named;
+
+    // Constant pool of the global table: every string global by content, so
+    // repeated literals and function names share one slot.
+    private Map<String, Variable> strings;
+    private int stringSlotsSaved;
+    private long stringBytesSaved;
+
+    SymbolTable() {
+        this.names = new Names();
+        this.strings = new HashMap<>();
+    }
 
     SymbolTable(SymbolTable parent) {
         this.parent = parent;
+        this.names = parent.names;
     }
 
     void clear() {
         table.clear();
+        Arrays.fill(keys, 0);
+        Arrays.fill(vars, null);
+        named = 0;
     }
 
     List<Variable> getTable() {
@@ -22,13 +45,10 @@ class SymbolTable {
     }
 
     boolean isDeclared(String name) {
-        if (name.equals(""))
+        if (isAnonymous(name))
             return false;
-        for (Variable var : table) {
-            if (var.getName().equals(name))
-                return true;
-        }
-        return false;
+        int id = names.find(name);
+        return id >= 0 && lookup(id) != null;
     }
 
     boolean isGlobalTable() {
@@ -42,20 +62,96 @@ class SymbolTable {
     }
 
     Variable getVar(String name) {
-        if (name.equals(""))
+        if (isAnonymous(name))
             return null;
-        for (Variable var : table) {
-            if (var.getName().equals(name))
+        int id = names.find(name);
+        if (id < 0)
+            return null;
+        for (SymbolTable scope = this; scope != null; scope = scope.parent) {
+            Variable var = scope.lookup(id);
+            if (var != null)
                 return var;
         }
-        if (parent == null)
-            return null;
-        return parent.getVar(name);
+        return null;
     }
 
     void addVar(Variable var) {
         if (isDeclared(var.getName()))
-            System.exit(64);
+            throw new CompileException(CompilationResult.REDECLARED, "'" + var.getName() + "' is already declared");
         table.add(var);
+        if (!isAnonymous(var.getName()))
+            insert(names.intern(var.getName()) + 1, var);
+    }
+
+    // Gives `name` an id now, so that later addVar calls only read the shared
+    // Names.
+    void internName(String name) {
+        names.intern(name);
+    }
+
+    // The pooled global holding `value`, or null if there is none yet.
+    Variable getString(String value) {
+        Variable var = strings.get(value);
+        if (var != null) {
+            stringSlotsSaved++;
+            // const flag, size and the bytes themselves
+            stringBytesSaved += 1 + 4 + var.getSize();
+        }
+        return var;
+    }
+
+    // getString without counting a saved slot.
+    Variable findString(String value) {
+        return strings.get(value);
+    }
+
+    void addString(Variable var) {
+        addVar(var);
+        strings.put(var.getValue(), var);
+    }
+
+    int getStringSlotsSaved() {
+        return stringSlotsSaved;
+    }
+
+    long getStringBytesSaved() {
+        return stringBytesSaved;
+    }
+
+    private static boolean isAnonymous(String name) {
+        return name == null || name.isEmpty();
+    }
+
+    private Variable lookup(int id) {
+        int mask = keys.length - 1;
+        for (int i = Names.mix(id) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == id + 1)
+                return vars[i];
+        }
+        return null;
+    }
+
+    private void insert(int key, Variable var) {
+        if ((named + 1) * 2 > keys.length) {
+            int[] oldKeys = keys;
+            Variable[] oldVars = vars;
+            keys = new int[oldKeys.length * 2];
+            vars = new Variable[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0)
+                    put(oldKeys[i], oldVars[i]);
+            }
+        }
+        put(key, var);
+        named++;
+    }
+
+    private void put(int key, Variable var) {
+        int mask = keys.length - 1;
+        int i = Names.mix(key - 1) & mask;
+        while (keys[i] != 0)
+            i = (i + 1) & mask;
+        keys[i] = key;
+        vars[i] = var;
     }
 }
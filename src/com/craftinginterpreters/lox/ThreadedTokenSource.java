@@ -0,0 +1,77 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Runs the Scanner on its own thread and hands token batches to the parser
+// through a bounded queue. Batches are recycled, so the front end holds at
+// most DEPTH + 2 of them no matter how large the source is.
+class ThreadedTokenSource implements TokenSource, AutoCloseable {
+    private static final int BATCH = 1024;
+    private static final int DEPTH = 4;
+    private static final TokenBuffer END = new TokenBuffer(Source.of(""), 1);
+
+    private final TokenBuffer tokens;
+    private final BlockingQueue<TokenBuffer> full = new ArrayBlockingQueue<>(DEPTH + 2);
+    private final BlockingQueue<TokenBuffer> free = new ArrayBlockingQueue<>(DEPTH + 2);
+    private final Thread lexer;
+    private volatile RuntimeException failure;
+    private boolean done;
+
+    ThreadedTokenSource(Source source, TokenBuffer tokens, Diagnostics diagnostics) {
+        this.tokens = tokens;
+        for (int i = 0; i < DEPTH + 2; i++)
+            free.add(new TokenBuffer(source, BATCH));
+        lexer = new Thread(() -> produce(source, diagnostics), "lexer");
+        lexer.setDaemon(true);
+        lexer.start();
+    }
+
+    private void produce(Source source, Diagnostics diagnostics) {
+        Scanner scanner = new Scanner(source, END, diagnostics);
+        try {
+            while (true) {
+                TokenBuffer batch = free.take();
+                batch.clear();
+                if (!scanner.scan(batch, BATCH))
+                    break;
+                full.put(batch);
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        try {
+            full.put(END);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    @Override
+    public boolean fill() {
+        if (done)
+            return false;
+        TokenBuffer batch;
+        try {
+            batch = full.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for tokens", e);
+        }
+        if (batch == END) {
+            done = true;
+            if (failure != null)
+                throw failure;
+            return false;
+        }
+        tokens.append(batch);
+        free.add(batch);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        lexer.interrupt();
+    }
+}
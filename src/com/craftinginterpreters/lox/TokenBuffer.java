@@ -0,0 +1,218 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+// Token stream kept as parallel primitive arrays: type ordinal, start offset,
+// length, line and an index into the literal side tables. Lexemes stay in the
+// Source until someone asks for them.
+//
+// Indices are absolute. When the buffer is used as a streaming window,
+// discardBefore() drops consumed tokens and base() tells where it now starts.
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Source source;
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int[] literals;
+    private int base;
+    private int count;
+
+    // UINT and CHAR values, and DOUBLE raw bits.
+    private long[] values = new long[16];
+    private int valueBase;
+    private int valueCount;
+    private String[] strings = new String[16];
+    private int stringBase;
+    private int stringCount;
+
+    TokenBuffer(Source source) {
+        this(source, 256);
+    }
+
+    TokenBuffer(Source source, int capacity) {
+        this.source = source;
+        types = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+        literals = new int[capacity];
+    }
+
+    Source getSource() {
+        return source;
+    }
+
+    int base() {
+        return base;
+    }
+
+    // One past the last buffered index.
+    int size() {
+        return base + count;
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        append(type, start, length, line, -1);
+    }
+
+    void addLong(TokenType type, int start, int length, int line, long value) {
+        if (valueCount == values.length)
+            values = Arrays.copyOf(values, valueCount * 2);
+        values[valueCount] = value;
+        append(type, start, length, line, valueBase + valueCount++);
+    }
+
+    void addDouble(TokenType type, int start, int length, int line, double value) {
+        addLong(type, start, length, line, Double.doubleToRawLongBits(value));
+    }
+
+    void addString(TokenType type, int start, int length, int line, String value) {
+        if (stringCount == strings.length)
+            strings = Arrays.copyOf(strings, stringCount * 2);
+        strings[stringCount] = value;
+        append(type, start, length, line, stringBase + stringCount++);
+    }
+
+    TokenType type(int i) {
+        return TYPES[types[i - base]];
+    }
+
+    int line(int i) {
+        return lines[i - base];
+    }
+
+    int start(int i) {
+        return starts[i - base];
+    }
+
+    int length(int i) {
+        return lengths[i - base];
+    }
+
+    String lexeme(int i) {
+        return source.text(start(i), start(i) + length(i));
+    }
+
+    boolean lexemeEquals(int i, String text) {
+        int length = length(i);
+        if (length != text.length())
+            return false;
+        int start = start(i);
+        for (int k = 0; k < length; k++) {
+            if (source.charAt(start + k) != text.charAt(k))
+                return false;
+        }
+        return true;
+    }
+
+    long longValue(int i) {
+        return values[literals[i - base] - valueBase];
+    }
+
+    double doubleValue(int i) {
+        return Double.longBitsToDouble(longValue(i));
+    }
+
+    String stringValue(int i) {
+        return strings[literals[i - base] - stringBase];
+    }
+
+    Object literal(int i) {
+        switch (type(i)) {
+            case UINT: return longValue(i);
+            case CHAR: return (char) longValue(i);
+            case DOUBLE: return doubleValue(i);
+            case STRING: return stringValue(i);
+            default: return null;
+        }
+    }
+
+    // Materialized only for diagnostics.
+    Token token(int i) {
+        return new Token(type(i), lexeme(i), literal(i), line(i));
+    }
+
+    // Copies every token of a batch produced by another Scanner.
+    void append(TokenBuffer batch) {
+        for (int i = batch.base; i < batch.size(); i++) {
+            TokenType type = batch.type(i);
+            int start = batch.start(i);
+            int length = batch.length(i);
+            int line = batch.line(i);
+            if (type == STRING)
+                addString(type, start, length, line, batch.stringValue(i));
+            else if (type == UINT || type == CHAR || type == DOUBLE)
+                addLong(type, start, length, line, batch.longValue(i));
+            else
+                add(type, start, length, line);
+        }
+    }
+
+    void clear() {
+        base = 0;
+        count = 0;
+        valueBase = valueCount = 0;
+        stringBase = stringCount = 0;
+    }
+
+    // Forgets every token before index `from`, along with its literal.
+    void discardBefore(int from) {
+        int drop = from - base;
+        if (drop <= 0)
+            return;
+        count -= drop;
+        System.arraycopy(types, drop, types, 0, count);
+        System.arraycopy(starts, drop, starts, 0, count);
+        System.arraycopy(lengths, drop, lengths, 0, count);
+        System.arraycopy(lines, drop, lines, 0, count);
+        System.arraycopy(literals, drop, literals, 0, count);
+        base = from;
+
+        // Literal indices grow with token order, so the first remaining
+        // literal of each kind marks how much of its side table is dead.
+        int firstValue = valueBase + valueCount;
+        int firstString = stringBase + stringCount;
+        for (int i = 0; i < count; i++) {
+            if (literals[i] < 0)
+                continue;
+            if (TYPES[types[i]] == STRING)
+                firstString = Math.min(firstString, literals[i]);
+            else
+                firstValue = Math.min(firstValue, literals[i]);
+        }
+        int deadValues = firstValue - valueBase;
+        valueCount -= deadValues;
+        System.arraycopy(values, deadValues, values, 0, valueCount);
+        valueBase = firstValue;
+        int deadStrings = firstString - stringBase;
+        stringCount -= deadStrings;
+        System.arraycopy(strings, deadStrings, strings, 0, stringCount);
+        Arrays.fill(strings, stringCount, stringCount + deadStrings, null);
+        stringBase = firstString;
+    }
+
+    private void append(TokenType type, int start, int length, int line, int literal) {
+        if (count == types.length)
+            grow();
+        types[count] = (byte) type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        literals[count] = literal;
+        count++;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        literals = Arrays.copyOf(literals, capacity);
+    }
+}
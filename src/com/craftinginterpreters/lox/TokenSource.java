@@ -0,0 +1,8 @@
+package com.craftinginterpreters.lox;
+
+// Supplies tokens to a Parser on demand instead of all up front.
+interface TokenSource {
+    // Appends at least one token to the parser's buffer; false once EOF has
+    // already been delivered.
+    boolean fill();
+}
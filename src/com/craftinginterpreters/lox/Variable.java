@@ -8,6 +8,8 @@ class Variable {
     private int size;
     private long addr;
     private String value;
+    // Compile-time value of a const whose initializer folded, else null.
+    private Object constValue;
 
     Variable() {
         this.isConst = false;
@@ -40,6 +42,14 @@ class Variable {
         this.value = value;
     }
 
+    Object getConstValue() {
+        return constValue;
+    }
+
+    void setConstValue(Object constValue) {
+        this.constValue = constValue;
+    }
+
     boolean isConst() {
         return isConst;
     }